@@ -1,48 +1,863 @@
 package com.github.nilstrieb.grsbpl;
 
+import com.github.nilstrieb.grsbpl.cluster.Coordinator;
+import com.github.nilstrieb.grsbpl.cluster.Worker;
 import com.github.nilstrieb.grsbpl.language.*;
+import com.github.nilstrieb.grsbpl.language.monitoring.MonitoringListener;
 
-import java.io.IOException;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 public class GrsbplRunner {
 
+    /**
+     * The size of the chunks of lines that the workers of {@code --map} run, in bytes
+     */
+    private static final int MAP_CHUNK_SIZE = 1 << 20;
+    /**
+     * How much longer than {@code --timeout} a worker of {@code --cluster} may take for a job before it is restarted
+     */
+    private static final Duration JOB_TIMEOUT_GRACE = Duration.ofSeconds(10);
+
     private List<String> program;
+    private Path profileOutput;
+    private Path profileData;
+    private boolean monitor;
+    private long instructionLimit = Long.MAX_VALUE;
+    private Duration timeout;
+    private boolean repl;
+    private Path memoryFile;
+    private boolean offHeapMemory;
+    private Memory memory;
+    private ForkJoinPool pool;
+    private boolean parallelCalls;
+    private boolean asyncOutput;
+    private StackPolicy stackPolicy = StackPolicy.DEFAULT;
+    private ExecutionEngine engine = ExecutionEngine.TOKEN_SWITCH;
+    private boolean lazyLabels;
+    private Path libraryDirectory = Path.of(".");
+    private Path compileOutput;
+    private boolean pipeline;
+    private Path mapInput;
+    private int clusterWorkers;
+    private Duration jobTimeout;
+    private int benchRuns;
+    private int warmupRuns = 5;
+    private Path benchInput;
+    private Path traceFile;
+    private int traceSize = 1 << 20;
+    private Path replayFile;
+    private Path traceSummary;
+    private Path checkpointFile;
+    private Duration checkpointInterval = Duration.ofMinutes(1);
+    private Path resumeFile;
 
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.err.println("usage: <filename>");
-            System.exit(1);
+        GrsbplRunner runner = new GrsbplRunner();
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--profile" -> runner.profileOutput = Path.of(argument(args, ++i));
+                case "--profile-data" -> runner.profileData = Path.of(argument(args, ++i));
+                case "--monitor" -> runner.monitor = true;
+                case "--max-instructions" -> runner.instructionLimit = Long.parseLong(argument(args, ++i));
+                case "--timeout" -> runner.timeout = Duration.ofMillis(Long.parseLong(argument(args, ++i)));
+                case "--repl" -> runner.repl = true;
+                case "--memory" -> runner.memoryFile = Path.of(argument(args, ++i));
+                case "--off-heap-memory" -> runner.offHeapMemory = true;
+                case "--parallel-calls" -> runner.parallelCalls = true;
+                case "--async-output" -> runner.asyncOutput = true;
+                case "--max-stack" -> runner.stackPolicy = runner.stackPolicy.withMaxDepth(Integer.parseInt(argument(args, ++i)));
+                case "--shrink-stack" -> runner.stackPolicy = runner.stackPolicy.withShrinking(true);
+                case "--off-heap-stack" -> runner.stackPolicy = runner.stackPolicy.withOffHeap(true);
+                case "--compile" -> runner.compileOutput = Path.of(argument(args, ++i));
+                case "--lazy-labels" -> runner.lazyLabels = true;
+                case "--closure-engine" -> runner.engine = ExecutionEngine.CLOSURE_TREE;
+                case "--threads" -> runner.pool = new ForkJoinPool(Integer.parseInt(argument(args, ++i)));
+                case "--pipeline" -> runner.pipeline = true;
+                case "--map" -> runner.mapInput = Path.of(argument(args, ++i));
+                case "--cluster" -> runner.clusterWorkers = Integer.parseInt(argument(args, ++i));
+                case "--job-timeout" -> runner.jobTimeout = Duration.ofMillis(Long.parseLong(argument(args, ++i)));
+                case "--bench" -> runner.benchRuns = Integer.parseInt(argument(args, ++i));
+                case "--warmup" -> runner.warmupRuns = Integer.parseInt(argument(args, ++i));
+                case "--input" -> runner.benchInput = Path.of(argument(args, ++i));
+                case "--trace" -> runner.traceFile = Path.of(argument(args, ++i));
+                case "--trace-size" -> runner.traceSize = Integer.parseInt(argument(args, ++i));
+                case "--replay" -> runner.replayFile = Path.of(argument(args, ++i));
+                case "--trace-summary" -> runner.traceSummary = Path.of(argument(args, ++i));
+                case "--checkpoint" -> runner.checkpointFile = Path.of(argument(args, ++i));
+                case "--checkpoint-interval" -> runner.checkpointInterval = Duration.ofMillis(Long.parseLong(argument(args, ++i)));
+                case "--resume" -> runner.resumeFile = Path.of(argument(args, ++i));
+                case "--worker" -> {
+                    runner.worker(Integer.parseInt(argument(args, ++i)));
+                    return;
+                }
+                default -> files.add(args[i]);
+            }
+        }
+        if (files.isEmpty() && !runner.repl || files.size() > 1 && !runner.pipeline && runner.clusterWorkers == 0) {
+            usage();
         }
 
         try {
-            String s = Files.readString(Path.of(args[0]));
-            GrsbplRunner runner = new GrsbplRunner();
-            int exit = runner.run(s);
+            List<String> sources = new ArrayList<>();
+            // the other files of a cluster run are inputs, they are read by the workers
+            for (String file : runner.clusterWorkers > 0 ? files.subList(0, 1) : files) {
+                sources.add(Files.readString(Path.of(file)));
+            }
+            String s = sources.isEmpty() ? null : sources.get(0);
+            if (!files.isEmpty() && Path.of(files.get(0)).getParent() != null) {
+                runner.libraryDirectory = Path.of(files.get(0)).getParent();
+            }
+            runner.openMemory();
+            int exit;
+            if (runner.compileOutput != null) {
+                exit = runner.compileLibrary(s);
+            } else if (runner.pipeline) {
+                exit = runner.pipeline(sources);
+            } else if (runner.clusterWorkers > 0) {
+                exit = runner.cluster(s, files.subList(1, files.size()));
+            } else if (runner.mapInput != null) {
+                exit = runner.map(s);
+            } else if (runner.benchRuns > 0) {
+                exit = runner.bench(s);
+            } else if (runner.traceSummary != null) {
+                exit = runner.traceSummary(s);
+            } else {
+                exit = runner.repl ? runner.repl(s) : runner.run(s);
+            }
+            runner.closeMemory();
             System.exit(exit);
         } catch (IOException e) {
             System.err.println("File not found");
         }
     }
 
+    private static String argument(String[] args, int i) {
+        if (i >= args.length) {
+            usage();
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.err.println("usage: [options] <filename>");
+        System.err.println("       [options] --repl [<filename>]");
+        System.err.println("       [options] --pipeline <filename>...");
+        System.err.println("       [options] --map <input> <filename>");
+        System.err.println("       [options] --cluster <n> <filename> <input>...");
+        System.err.println("       [options] --bench <n> [--warmup <n>] [--input <file>] <filename>");
+        System.err.println("       --trace-summary <trace> <filename>");
+        System.err.println("       --compile <output> <library>");
+        System.err.println("  --profile <file>        print a profile to stderr and write collapsed stacks for flamegraphs to <file>");
+        System.err.println("  --profile-data <file>   learn from earlier runs recorded in <file> and record this run into it");
+        System.err.println("  --monitor               publish JFR events and the com.github.nilstrieb.grsbpl:type=Interpreter MBean");
+        System.err.println("  --max-instructions <n>  stop the program after about <n> instructions");
+        System.err.println("  --timeout <ms>          stop the program after <ms> milliseconds");
+        System.err.println("  --repl                  read lines from stdin and run them, keeping the state between lines");
+        System.err.println("  --memory <file>         map the memory of the program to <file>, keeping it after the run");
+        System.err.println("  --off-heap-memory       keep the memory of the program outside of the Java heap");
+        System.err.println("  --parallel-calls        evaluate independent calls of pure functions in parallel");
+        System.err.println("  --async-output          write the output on a background thread");
+        System.err.println("  --max-stack <n>         stop the program when the stack of a function holds more than <n> values");
+        System.err.println("  --shrink-stack          give memory of the stack back when it is mostly empty again");
+        System.err.println("  --off-heap-stack        keep the stack outside of the Java heap, for very big stacks");
+        System.err.println("  --compile <output>      compile a library into <output>, so it is not lexed again when it is imported");
+        System.err.println("  --lazy-labels           look for labels and functions when they are used, to start big programs faster");
+        System.err.println("  --closure-engine        run the program as a tree of precompiled nodes, faster for long runs");
+        System.err.println("  --threads <n>           run spawned function calls on <n> threads instead of one per core");
+        System.err.println("  --pipeline              run all files at the same time, connected by the channels of send and recv");
+        System.err.println("  --map <input>           run the program once for every line of <input>, with the line as its input");
+        System.err.println("  --cluster <n>           run the program once for every input file, on <n> worker JVMs");
+        System.err.println("  --job-timeout <ms>      restart a worker of --cluster that needs longer than <ms> for a job");
+        System.err.println("  --bench <n>             run the program <n> times without output and report the latency");
+        System.err.println("  --warmup <n>            run the program <n> times before measuring with --bench, 5 by default");
+        System.err.println("  --input <file>          the input of every run of --bench, empty by default");
+        System.err.println("  --trace <file>          record calls, returns, gotos and input into the ring file <file>");
+        System.err.println("  --trace-size <n>        keep the last <n> records in the trace, 1048576 by default");
+        System.err.println("  --replay <file>         run the program with the input recorded in the trace <file>");
+        System.err.println("  --trace-summary <file>  print the most taken gotos and called functions of the trace <file>");
+        System.err.println("  --checkpoint <file>     save the state of the program to <file> regularly, to resume it later");
+        System.err.println("  --checkpoint-interval <ms>  the time between two checkpoints, 60000 by default");
+        System.err.println("  --resume <file>         continue the program from the checkpoint in <file>");
+        System.exit(1);
+    }
+
     private int run(String program) {
         this.program = program.lines().collect(Collectors.toUnmodifiableList());
+        Profiler profiler = profileOutput == null ? null : new Profiler();
+        ExecutionProfile profile = profileData == null ? null : readProfileData();
+        // checkpoints are written on their own thread, so the program does not wait for the disk
+        ExecutorService checkpointWriter = checkpointFile == null ? null : Executors.newSingleThreadExecutor();
         try {
-            List<Token> tokens = new Lexer().lex(program.toCharArray());
-            Interpreter interpreter = new Interpreter();
-            return interpreter.run(tokens);
+            Program compiled = compile(program);
+            Interpreter interpreter = createInterpreter(profiler);
+            if (profile != null) {
+                interpreter.setProfileData(profile);
+                if (engine == ExecutionEngine.TOKEN_SWITCH) {
+                    interpreter.setEngine(profile.suggestEngine(compiled));
+                }
+            }
+            if (traceFile != null) {
+                interpreter.setTrace(ExecutionTrace.record(traceFile, traceSize));
+            } else if (replayFile != null) {
+                ExecutionTrace trace = ExecutionTrace.open(replayFile);
+                if (!trace.isFor(compiled)) {
+                    System.err.println("The trace " + replayFile + " was recorded for another program");
+                    return 1;
+                }
+                if (!trace.isComplete()) {
+                    System.err.println("The trace " + replayFile + " is incomplete, record it with a bigger --trace-size");
+                    return 1;
+                }
+                interpreter.setEngine(trace.getEngine());
+                interpreter.setTrace(trace);
+            }
+            if (checkpointWriter != null) {
+                interpreter.setCheckpoints(checkpoint -> checkpointWriter.execute(() -> writeCheckpoint(checkpoint)),
+                        checkpointInterval);
+            }
+            if (resumeFile != null) {
+                Checkpoint checkpoint;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(resumeFile)))) {
+                    checkpoint = Checkpoint.read(in);
+                }
+                if (!checkpoint.isFor(compiled)) {
+                    System.err.println("The checkpoint " + resumeFile + " was taken from another program");
+                    return 1;
+                }
+                return interpreter.resume(compiled, checkpoint);
+            }
+            return interpreter.run(compiled);
         } catch (LexException e) {
-            showError(e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
         } catch (RunException e) {
-            showError(e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            showError(this.program, e);
+        } catch (IOException e) {
+            System.err.println("Could not load a library, trace or checkpoint: " + e.getMessage());
+        } finally {
+            if (checkpointWriter != null) {
+                awaitCheckpoints(checkpointWriter);
+            }
+            if (profiler != null) {
+                writeProfile(profiler);
+            }
+            if (profile != null) {
+                writeProfileData(profile);
+            }
         }
         return 1;
     }
 
-    private void showError(String message, int line, int offset, int length) {
+    /**
+     * Lexes the program and links the libraries it imports
+     */
+    private Program compile(String program) throws IOException {
+        List<Token> tokens = new Lexer().lex(program.toCharArray());
+        if (tokens.stream().anyMatch(token -> token.getType() == TokenType.IMPORT)) {
+            return new Linker(this::loadLibrary).link(tokens);
+        }
+        return lazyLabels ? Program.compileLazily(tokens) : Program.compile(tokens);
+    }
+
+    /**
+     * Looks for a library next to the program, compiled as {@code <name>.grsbplc} or as source code in
+     * {@code <name>.grsbpl}
+     */
+    private Program loadLibrary(String name) throws IOException {
+        Path compiled = libraryDirectory.resolve(name + ".grsbplc");
+        if (Files.exists(compiled)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(compiled)))) {
+                return Program.read(in);
+            }
+        }
+        Path source = libraryDirectory.resolve(name + ".grsbpl");
+        if (Files.exists(source)) {
+            try {
+                return Program.compile(new Lexer().lex(Files.readString(source).toCharArray()));
+            } catch (LexException e) {
+                throw new IOException(source + ":" + e.getLineNumber() + ": " + e.getMessage());
+            } catch (RunException e) {
+                throw new IOException(source + ":" + e.getLineNumber() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private int compileLibrary(String library) throws IOException {
+        this.program = library.lines().collect(Collectors.toUnmodifiableList());
+        Program compiled;
+        try {
+            compiled = Program.compile(new Lexer().lex(library.toCharArray()));
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return 1;
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compileOutput)))) {
+            compiled.write(out);
+        }
+        return 0;
+    }
+
+    /**
+     * Runs every program on its own thread, all of them share the same channels. If one of them fails, the others
+     * are cancelled, so they don't wait for each other forever.
+     *
+     * @return the exit code of the last program
+     */
+    private int pipeline(List<String> programs) {
+        Channels channels = new Channels();
+        CancellationToken cancellationToken = new CancellationToken();
+        int[] exits = new int[programs.size()];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < programs.size(); i++) {
+            int stage = i;
+            List<String> lines = programs.get(i).lines().collect(Collectors.toUnmodifiableList());
+            Interpreter interpreter = createInterpreter(null);
+            interpreter.setChannels(channels);
+            interpreter.setCancellationToken(cancellationToken);
+            Thread thread = new Thread(() -> {
+                exits[stage] = 1;
+                try {
+                    exits[stage] = interpreter.run(compile(programs.get(stage)));
+                } catch (LexException e) {
+                    cancellationToken.cancel();
+                    showError(lines, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+                } catch (RunException e) {
+                    if (!cancellationToken.isCancelled()) {
+                        cancellationToken.cancel();
+                        showError(lines, e);
+                    }
+                } catch (IOException e) {
+                    cancellationToken.cancel();
+                    showFailure("[GRSBPL] Stage " + stage + " could not load a library: " + e.getMessage());
+                } catch (RuntimeException | Error e) {
+                    // the other stages would wait for this one forever
+                    cancellationToken.cancel();
+                    showFailure("[GRSBPL] Stage " + stage + " failed: " + e);
+                }
+            }, "grsbpl-pipeline-" + stage);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            cancellationToken.cancel();
+            Thread.currentThread().interrupt();
+        }
+        return exits[exits.length - 1];
+    }
+
+    /**
+     * Runs the program for every line of the input file on all threads, with the line without its line break as the
+     * input of {@code in}. The file is mapped into memory and split into chunks of whole lines, every chunk is run by
+     * one worker into its own output buffer and the buffers are written in the order of the input.
+     *
+     * @return 0 if the program succeeded for every line, 1 otherwise
+     */
+    private int map(String program) throws IOException {
+        this.program = program.lines().collect(Collectors.toUnmodifiableList());
+        Program compiled;
+        try {
+            compiled = compile(program);
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return 1;
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+
+        int threads = pool == null ? Runtime.getRuntime().availableProcessors() : pool.getParallelism();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        // every worker thread reuses its interpreter for all of its records, memory is not shared between records
+        ThreadLocal<Interpreter> interpreters = ThreadLocal.withInitial(() -> {
+            Interpreter interpreter = createInterpreter(null);
+            interpreter.setMemory(null);
+            // the output goes to a buffer in memory already
+            interpreter.setAsyncOutput(false);
+            return interpreter;
+        });
+
+        try (FileChannel channel = FileChannel.open(mapInput, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.err.println("Input file " + mapInput + " is too big to be mapped");
+                return 1;
+            }
+            MappedByteBuffer input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // only a few chunks are buffered at the same time, so the output of a big file doesn't fill the heap
+            Deque<Future<MapChunk>> running = new ArrayDeque<>();
+            int start = 0;
+            int firstRecord = 1;
+            while (start < input.limit() || !running.isEmpty()) {
+                while (start < input.limit() && running.size() < threads * 4) {
+                    int end = chunkEnd(input, start);
+                    byte[] bytes = new byte[end - start];
+                    input.get(start, bytes);
+                    int records = firstRecord;
+                    running.add(workers.submit(() -> runChunk(interpreters.get(), compiled, bytes, records)));
+                    firstRecord += countLines(bytes);
+                    start = end;
+                }
+                MapChunk chunk = running.remove().get();
+                System.out.write(chunk.output.toByteArray());
+                if (chunk.error != null) {
+                    System.out.flush();
+                    System.err.println();
+                    System.err.println("[GRSBPL] Failed for line " + chunk.errorRecord + " of " + mapInput);
+                    RunException e = chunk.error;
+                    showError(this.program, e);
+                    running.forEach(future -> future.cancel(true));
+                    return 1;
+                }
+            }
+            System.out.flush();
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the end of the chunk starting at start, right after a line break or at the end of the input
+     */
+    private static int chunkEnd(ByteBuffer input, int start) {
+        int end = (int) Math.min(input.limit(), (long) start + MAP_CHUNK_SIZE);
+        while (end < input.limit() && input.get(end - 1) != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private static int countLines(byte[] bytes) {
+        int lines = 0;
+        for (byte b : bytes) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return bytes.length == 0 || bytes[bytes.length - 1] == '\n' ? lines : lines + 1;
+    }
+
+    private static MapChunk runChunk(Interpreter interpreter, Program program, byte[] bytes, int firstRecord) {
+        MapChunk chunk = new MapChunk();
+        interpreter.setOutput(new PrintStream(chunk.output, false));
+        int record = firstRecord;
+        int start = 0;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            int length = end > start && bytes[end - 1] == '\r' ? end - start - 1 : end - start;
+            interpreter.setInput(new ByteArrayInputStream(bytes, start, length));
+            try {
+                interpreter.run(program);
+            } catch (RunException e) {
+                chunk.error = e;
+                chunk.errorRecord = record;
+                break;
+            }
+            record++;
+            start = end + 1;
+        }
+        interpreter.setInput(null);
+        interpreter.setOutput(null);
+        return chunk;
+    }
+
+    /**
+     * The output of a chunk of records, and the first error if there was one
+     */
+    private static class MapChunk {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private RunException error;
+        private int errorRecord;
+    }
+
+    /**
+     * Prints the summary of the trace, the program is only compiled to show where the events happened
+     */
+    private int traceSummary(String program) throws IOException {
+        this.program = program.lines().collect(Collectors.toUnmodifiableList());
+        Program compiled;
+        try {
+            compiled = compile(program);
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return 1;
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+        ExecutionTrace trace = ExecutionTrace.open(traceSummary);
+        if (!trace.isFor(compiled)) {
+            System.err.println("The trace " + traceSummary + " was recorded for another program");
+            return 1;
+        }
+        trace.writeSummary(compiled, System.out, 10);
+        return 0;
+    }
+
+    /**
+     * Runs the program {@link #benchRuns} times after {@link #warmupRuns} runs that are not measured, and prints the
+     * latency, instructions per second and allocated bytes per run. The output of the program is discarded and every
+     * run reads the whole {@link #benchInput}.
+     *
+     * @return 0 if every run succeeded, 1 otherwise
+     */
+    private int bench(String program) throws IOException {
+        this.program = program.lines().collect(Collectors.toUnmodifiableList());
+        byte[] input = benchInput == null ? new byte[0] : Files.readAllBytes(benchInput);
+        Program compiled;
+        try {
+            compiled = compile(program);
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return 1;
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+
+        Interpreter interpreter = createInterpreter(null);
+        interpreter.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+        com.sun.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+        long[] nanos = new long[benchRuns];
+        long allocated = 0;
+        long instructions = 0;
+        try {
+            for (int run = -warmupRuns; run < benchRuns; run++) {
+                interpreter.setInput(new ByteArrayInputStream(input));
+                long allocatedBefore = threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                interpreter.run(compiled);
+                long time = System.nanoTime() - start;
+                if (run >= 0) {
+                    nanos[run] = time;
+                    instructions += interpreter.getInstructionCount();
+                    allocated += threads == null ? 0 : threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                }
+            }
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+
+        Arrays.sort(nanos);
+        long total = Arrays.stream(nanos).sum();
+        System.out.println(benchRuns + " runs after " + warmupRuns + " warm-up runs");
+        System.out.printf("  min              %12.3f ms%n", nanos[0] / 1e6);
+        System.out.printf("  median           %12.3f ms%n", percentile(nanos, 50) / 1e6);
+        System.out.printf("  p99              %12.3f ms%n", percentile(nanos, 99) / 1e6);
+        System.out.printf("  max              %12.3f ms%n", nanos[benchRuns - 1] / 1e6);
+        System.out.printf("  instructions/s   %,12d%n", (long) (instructions * 1e9 / Math.max(1, total)));
+        if (threads != null) {
+            System.out.printf("  allocated/run    %,12d bytes%n", allocated / benchRuns);
+        }
+        return 0;
+    }
+
+    /**
+     * @param sorted the values in ascending order
+     * @return the smallest value that is at least as big as the percent of the values
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Runs the program for every input file on worker JVMs and writes their outputs in the order of the inputs
+     *
+     * @return 0 if the program returned 0 for every input, 1 otherwise
+     */
+    private int cluster(String program, List<String> inputs) throws IOException {
+        this.program = program.lines().collect(Collectors.toUnmodifiableList());
+        Program compiled;
+        try {
+            compiled = compile(program);
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return 1;
+        } catch (RunException e) {
+            showError(this.program, e);
+            return 1;
+        }
+
+        List<String> workerOptions = new ArrayList<>();
+        if (instructionLimit != Long.MAX_VALUE) {
+            workerOptions.addAll(List.of("--max-instructions", String.valueOf(instructionLimit)));
+        }
+        if (timeout != null) {
+            workerOptions.addAll(List.of("--timeout", String.valueOf(timeout.toMillis())));
+        }
+        if (parallelCalls) {
+            workerOptions.add("--parallel-calls");
+        }
+        if (stackPolicy.getMaxDepth() != StackPolicy.MAX_DEPTH) {
+            workerOptions.addAll(List.of("--max-stack", String.valueOf(stackPolicy.getMaxDepth())));
+        }
+        if (stackPolicy.isShrink()) {
+            workerOptions.add("--shrink-stack");
+        }
+        if (stackPolicy.isOffHeap()) {
+            workerOptions.add("--off-heap-stack");
+        }
+        if (engine == ExecutionEngine.CLOSURE_TREE) {
+            workerOptions.add("--closure-engine");
+        }
+        if (pool != null) {
+            workerOptions.addAll(List.of("--threads", String.valueOf(pool.getParallelism())));
+        }
+
+        int[] exit = {0};
+        Coordinator coordinator = new Coordinator(clusterWorkers, workerOptions);
+        // a worker with a timeout answers a bit after it, the grace also covers writing the output
+        coordinator.setJobTimeout(jobTimeout != null || timeout == null ? jobTimeout : timeout.plus(JOB_TIMEOUT_GRACE));
+        try {
+            coordinator.run(compiled, inputs.stream().map(Path::of).collect(Collectors.toList()), result -> {
+                System.out.write(result.getOutput(), 0, result.getOutput().length);
+                System.out.flush();
+                if (result.getError() != null) {
+                    String line = result.getErrorLine() == 0 ? "" : " (line " + result.getErrorLine() + ")";
+                    System.err.println("[GRSBPL] " + result.getInput() + ": " + result.getError() + line);
+                }
+                if (result.getExitCode() != 0) {
+                    exit[0] = 1;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        return exit[0];
+    }
+
+    /**
+     * Runs jobs for the coordinator listening on the port until it shuts this worker down
+     */
+    private void worker(int port) {
+        Interpreter interpreter = createInterpreter(null);
+        try {
+            new Worker(interpreter).run(port);
+        } catch (IOException e) {
+            System.err.println("[GRSBPL] Worker lost the connection to the coordinator: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs every line from stdin in the same interpreter session, the state is kept between lines
+     *
+     * @param program the program to run before reading the first line, may be null
+     */
+    private int repl(String program) throws IOException {
+        this.program = new ArrayList<>();
+        Profiler profiler = profileOutput == null ? null : new Profiler();
+        Interpreter interpreter = createInterpreter(profiler);
+        interpreter.startSession();
+        int exit = 0;
+
+        if (program != null) {
+            exit = evaluate(interpreter, program, exit);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            System.out.print("grsbpl> ");
+            System.out.flush();
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            exit = evaluate(interpreter, line, exit);
+        }
+        System.out.println();
+
+        if (profiler != null) {
+            writeProfile(profiler);
+        }
+        return exit;
+    }
+
+    private int evaluate(Interpreter interpreter, String source, int lastValue) {
+        int firstLine = program.size() + 1;
+        List<String> lines = source.lines().collect(Collectors.toList());
+        program.addAll(lines.isEmpty() ? List.of("") : lines);
+        try {
+            OptionalInt top = interpreter.evaluate(new Lexer().lex(source.toCharArray(), firstLine));
+            if (top.isPresent()) {
+                System.out.println("> " + top.getAsInt());
+                return top.getAsInt();
+            }
+            return 0;
+        } catch (LexException e) {
+            showError(this.program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+        } catch (RunException e) {
+            showError(this.program, e);
+        }
+        return lastValue;
+    }
+
+    private void openMemory() {
+        if (memoryFile != null) {
+            try {
+                memory = Memory.mapped(memoryFile);
+            } catch (IOException e) {
+                System.err.println("Could not map memory file " + memoryFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        } else if (offHeapMemory) {
+            memory = Memory.offHeap();
+        }
+    }
+
+    private void closeMemory() {
+        if (memory != null) {
+            try {
+                memory.close();
+            } catch (IOException e) {
+                System.err.println("Could not write memory file " + memoryFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Interpreter createInterpreter(Profiler profiler) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setMemory(memory);
+        interpreter.setParallelCalls(parallelCalls);
+        interpreter.setAsyncOutput(asyncOutput);
+        interpreter.setStackPolicy(stackPolicy);
+        interpreter.setEngine(engine);
+        if (pool != null) {
+            interpreter.setPool(pool);
+        }
+        interpreter.setInstructionLimit(instructionLimit);
+        interpreter.setTimeout(timeout);
+        if (profiler != null) {
+            interpreter.addListener(profiler);
+        }
+        if (monitor) {
+            interpreter.addListener(new MonitoringListener());
+        }
+        return interpreter;
+    }
+
+    /**
+     * Writes the checkpoint next to the checkpoint file first, so a crash while writing keeps the last one
+     */
+    private void writeCheckpoint(Checkpoint checkpoint) {
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                checkpoint.write(out);
+            }
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write checkpoint to " + checkpointFile + ": " + e.getMessage());
+        }
+    }
+
+    private static void awaitCheckpoints(ExecutorService checkpointWriter) {
+        checkpointWriter.shutdown();
+        try {
+            checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeProfile(Profiler profiler) {
+        profiler.writeReport(System.err);
+        try (Writer writer = Files.newBufferedWriter(profileOutput)) {
+            profiler.writeCollapsedStacks(writer);
+        } catch (IOException e) {
+            System.err.println("Could not write profile to " + profileOutput);
+        }
+    }
+
+    private ExecutionProfile readProfileData() {
+        if (!Files.exists(profileData)) {
+            return new ExecutionProfile();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(profileData)))) {
+            return ExecutionProfile.read(in);
+        } catch (IOException e) {
+            System.err.println("Could not read profile data from " + profileData + ", starting over: " + e.getMessage());
+            return new ExecutionProfile();
+        }
+    }
+
+    private void writeProfileData(ExecutionProfile profile) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(profileData)))) {
+            profile.write(out);
+        } catch (IOException e) {
+            System.err.println("Could not write profile data to " + profileData);
+        }
+    }
+
+    private synchronized void showFailure(String message) {
+        System.err.println();
+        System.err.println(message);
+    }
+
+    /**
+     * Shows the error in the program, or in the source of the library it happened in
+     */
+    private void showError(List<String> program, RunException e) {
+        if (e.getLibrary() == null) {
+            showError(program, e.getMessage(), e.getLineNumber(), e.getLineOffset(), e.getLineLength());
+            return;
+        }
+        List<String> library;
+        try {
+            library = Files.readAllLines(libraryDirectory.resolve(e.getLibrary() + ".grsbpl"));
+        } catch (IOException notFound) {
+            // only compiled
+            library = List.of();
+        }
+        showError(library, e.getMessage() + " (in library '" + e.getLibrary() + "')", e.getLineNumber(),
+                e.getLineOffset(), e.getLineLength());
+    }
+
+    private synchronized void showError(List<String> program, String message, int line, int offset, int length) {
+        if (line < 1 || line > program.size()) {
+            System.err.println();
+            System.err.println("[GRSBPL Runtime Execution Error]");
+            System.err.println("  " + message + " (line " + line + ")");
+            return;
+        }
         if (length == -1) {
             length = program.get(line - 1).length() - offset + 1;
         }
@@ -54,7 +869,7 @@ public class GrsbplRunner {
             System.err.println("  " + (line - 1) + " | " + program.get(line - 2));
         }
         System.err.println("  " + line + " | " + program.get(line - 1));
-        System.err.println("  " + s(len(line)) + "   " + s(offset) + "^".repeat(length - 1));
+        System.err.println("  " + s(len(line)) + "   " + s(offset) + "^".repeat(Math.max(1, length - 1)));
         System.err.println("  " + s(len(line)) + "   " + s(offset) + message);
         System.err.println();
         if (program.size() > line + 1) {
@@ -0,0 +1,311 @@
+package com.github.nilstrieb.grsbpl.cluster;
+
+import com.github.nilstrieb.grsbpl.GrsbplRunner;
+import com.github.nilstrieb.grsbpl.language.Program;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs a program for many inputs on worker JVMs on the same host, each with its own heap
+ * <p>
+ * Every worker is started with {@code --worker <port>} and connects back over the loopback interface. The compiled
+ * program is sent once per worker, then idle workers take the next input from a shared queue, so fast workers do more
+ * jobs than slow ones. If a worker dies or does not answer within the {@linkplain #setJobTimeout(Duration) job timeout},
+ * its job goes back to the front of the queue and a new worker is started.
+ */
+public class Coordinator {
+
+    static final int SHUTDOWN = -1;
+
+    /**
+     * A job is given up after it killed this many workers
+     */
+    private static final int MAX_ATTEMPTS = 3;
+    /**
+     * A slot stops starting new workers after this many of its workers died
+     */
+    private static final int MAX_RESTARTS = 3;
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+
+    private final int workerCount;
+    private final List<String> workerOptions;
+    private Duration jobTimeout;
+
+    private LinkedBlockingDeque<Job> queue;
+    private JobResult[] results;
+    private int nextResult;
+    private Consumer<JobResult> consumer;
+    private CountDownLatch remaining;
+    private AtomicInteger aliveSlots;
+
+    /**
+     * @param workerCount   the amount of worker JVMs
+     * @param workerOptions options for the {@link GrsbplRunner} of every worker, like limits
+     */
+    public Coordinator(int workerCount, List<String> workerOptions) {
+        this.workerCount = workerCount;
+        this.workerOptions = workerOptions;
+    }
+
+    /**
+     * Stop workers that take longer than this for a single job and retry the job, null to wait forever
+     */
+    public void setJobTimeout(Duration jobTimeout) {
+        this.jobTimeout = jobTimeout;
+    }
+
+    /**
+     * Runs the program once for every input, with the contents of the input as the input of {@code in}
+     *
+     * @param results receives the results in the order of the inputs, from a single thread at a time
+     */
+    public void run(Program program, List<Path> inputs, Consumer<JobResult> results) throws InterruptedException {
+        ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+        try {
+            program.write(new DataOutputStream(compiled));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        this.queue = new LinkedBlockingDeque<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            queue.add(new Job(i, inputs.get(i)));
+        }
+        this.results = new JobResult[inputs.size()];
+        this.nextResult = 0;
+        this.consumer = results;
+        this.remaining = new CountDownLatch(inputs.size());
+        this.aliveSlots = new AtomicInteger(workerCount);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(new Slot(compiled.toByteArray()), "grsbpl-coordinator-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        remaining.await();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private synchronized void complete(Job job, JobResult result) {
+        results[job.index] = result;
+        while (nextResult < results.length && results[nextResult] != null) {
+            consumer.accept(results[nextResult]);
+            results[nextResult] = null;
+            nextResult++;
+        }
+        remaining.countDown();
+    }
+
+    private void retry(Job job, String reason) {
+        job.attempts++;
+        if (job.attempts >= MAX_ATTEMPTS) {
+            complete(job, JobResult.failed(job.input, reason + ", gave up after " + job.attempts + " attempts"));
+        } else {
+            queue.addFirst(job);
+        }
+    }
+
+    /**
+     * @return the next job, or null when all jobs are done
+     */
+    private Job next() throws InterruptedException {
+        while (remaining.getCount() > 0) {
+            Job job = queue.pollFirst(100, TimeUnit.MILLISECONDS);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private static class Job {
+        private final int index;
+        private final Path input;
+        private int attempts;
+
+        Job(int index, Path input) {
+            this.index = index;
+            this.input = input;
+        }
+    }
+
+    /**
+     * Keeps one worker running and feeds it jobs
+     */
+    private class Slot implements Runnable {
+        private final byte[] program;
+        private Process process;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Slot(byte[] program) {
+            this.program = program;
+        }
+
+        @Override
+        public void run() {
+            int restarts = 0;
+            try {
+                while (true) {
+                    if (socket == null) {
+                        if (restarts > MAX_RESTARTS) {
+                            giveUp();
+                            return;
+                        }
+                        try {
+                            start();
+                        } catch (IOException e) {
+                            System.err.println("[GRSBPL] Could not start worker: " + e.getMessage());
+                            stop();
+                            restarts++;
+                            continue;
+                        }
+                    }
+
+                    Job job = next();
+                    if (job == null) {
+                        break;
+                    }
+                    byte[] input;
+                    try {
+                        input = Files.readAllBytes(job.input);
+                    } catch (IOException e) {
+                        complete(job, JobResult.failed(job.input, "Could not read input: " + e.getMessage()));
+                        continue;
+                    }
+                    try {
+                        complete(job, execute(job, input));
+                    } catch (SocketTimeoutException e) {
+                        // the worker is still alive, so this does not count as a restart
+                        stop();
+                        retry(job, "Worker timed out while running the job");
+                    } catch (IOException e) {
+                        stop();
+                        restarts++;
+                        retry(job, "Worker died while running the job");
+                    }
+                }
+                shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stop();
+            }
+        }
+
+        private void start() throws IOException {
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                List<String> command = new ArrayList<>();
+                command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(GrsbplRunner.class.getName());
+                command.addAll(workerOptions);
+                command.add("--worker");
+                command.add(String.valueOf(server.getLocalPort()));
+                process = new ProcessBuilder(command)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+
+                server.setSoTimeout(1000);
+                long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+                while (socket == null) {
+                    try {
+                        socket = server.accept();
+                    } catch (SocketTimeoutException e) {
+                        if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                            throw new IOException("Worker did not connect");
+                        }
+                    }
+                }
+            }
+            if (jobTimeout != null) {
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, jobTimeout.toMillis())));
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(program);
+            out.flush();
+        }
+
+        private JobResult execute(Job job, byte[] input) throws IOException {
+            out.writeInt(job.index);
+            out.writeInt(input.length);
+            out.write(input);
+            out.flush();
+
+            int index = in.readInt();
+            if (index != job.index) {
+                throw new IOException("Worker answered for job " + index + " instead of " + job.index);
+            }
+            int exit = in.readInt();
+            String error = in.readUTF();
+            int errorLine = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            return new JobResult(job.input, exit, output, error.isEmpty() ? null : error, errorLine);
+        }
+
+        private void shutdown() {
+            if (out != null) {
+                try {
+                    out.writeInt(SHUTDOWN);
+                    out.flush();
+                    process.waitFor(5, TimeUnit.SECONDS);
+                } catch (IOException ignored) {
+                    // the worker is gone already
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void stop() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+            socket = null;
+            in = null;
+            out = null;
+            process = null;
+        }
+
+        /**
+         * Without any worker left, the jobs in the queue would never be done
+         */
+        private void giveUp() {
+            System.err.println("[GRSBPL] Workers keep dying, not starting another one");
+            if (aliveSlots.decrementAndGet() == 0) {
+                Job job;
+                while ((job = queue.pollFirst()) != null) {
+                    complete(job, JobResult.failed(job.input, "No workers left"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.nilstrieb.grsbpl.cluster;
+
+import java.nio.file.Path;
+
+/**
+ * The result of running the program of a {@link Coordinator} for one input
+ */
+public class JobResult {
+    private final Path input;
+    private final int exitCode;
+    private final byte[] output;
+    private final String error;
+    private final int errorLine;
+
+    JobResult(Path input, int exitCode, byte[] output, String error, int errorLine) {
+        this.input = input;
+        this.exitCode = exitCode;
+        this.output = output;
+        this.error = error;
+        this.errorLine = errorLine;
+    }
+
+    static JobResult failed(Path input, String error) {
+        return new JobResult(input, 1, new byte[0], error, 0);
+    }
+
+    public Path getInput() {
+        return input;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the error message, or null if the job succeeded
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the line of the program where the error happened, or 0 if the error was not in the program
+     */
+    public int getErrorLine() {
+        return errorLine;
+    }
+}
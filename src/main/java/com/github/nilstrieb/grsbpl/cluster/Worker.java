@@ -0,0 +1,78 @@
+package com.github.nilstrieb.grsbpl.cluster;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * The worker side of a {@link Coordinator}, running in its own JVM
+ * <p>
+ * It connects to the coordinator, reads the program once and then runs jobs until the coordinator sends
+ * {@link Coordinator#SHUTDOWN} or goes away.
+ */
+public class Worker {
+
+    private final Interpreter interpreter;
+
+    /**
+     * @param interpreter the interpreter that runs all jobs, configured with the limits of the coordinator
+     */
+    public Worker(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public void run(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Program program = Program.read(in);
+
+            while (true) {
+                int job = in.readInt();
+                if (job == Coordinator.SHUTDOWN) {
+                    return;
+                }
+                byte[] input = new byte[in.readInt()];
+                in.readFully(input);
+                runJob(program, job, input, out);
+            }
+        } catch (EOFException e) {
+            // the coordinator is gone, there is nobody left to work for
+        }
+    }
+
+    private void runJob(Program program, int job, byte[] input, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(output, false);
+        interpreter.setInput(new ByteArrayInputStream(input));
+        interpreter.setOutput(printStream);
+
+        int exit;
+        String error = "";
+        int errorLine = 0;
+        try {
+            exit = interpreter.run(program);
+        } catch (RunException e) {
+            exit = 1;
+            error = e.getMessage();
+            errorLine = e.getLineNumber();
+        } catch (RuntimeException | Error e) {
+            // only this job failed, the worker goes on with the next one instead of dying and having the job retried
+            exit = 1;
+            error = e.toString();
+        }
+        printStream.flush();
+
+        out.writeInt(job);
+        out.writeInt(exit);
+        out.writeUTF(error);
+        out.writeInt(errorLine);
+        out.writeInt(output.size());
+        output.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes output on a background thread, so the interpreter does not wait for slow pipes or terminals
+ * <p>
+ * The interpreter thread appends characters to a lock-free ring buffer for one producer and one consumer, and the
+ * drainer thread prints them to the target stream, which encodes them with its own charset, and flushes it whenever the
+ * buffer runs empty. When the buffer is full, the interpreter waits for the drainer. Like a {@link PrintStream}, errors
+ * of the target are not thrown but can be checked with {@link #checkError()}.
+ * <p>
+ * After {@link #release()}, the drainer thread stops once it was idle for a while, and a new one is started for the
+ * next output, so an unused instance does not keep a thread around.
+ */
+public class AsyncOutput implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    private static final long RELEASED_IDLE_NANOS = 1_000_000_000;
+
+    private final char[] buffer;
+    private final int mask;
+    private final PrintStream target;
+    // null when the drainer stopped after being released, guarded by this
+    private Thread drainer;
+
+    // written by the drainer
+    private final AtomicLong head = new AtomicLong();
+    // written by the interpreter
+    private final AtomicLong tail = new AtomicLong();
+    // everything before this was written to the target and flushed, written by the drainer
+    private final AtomicLong flushed = new AtomicLong();
+
+    // only used by the interpreter
+    private long localTail;
+    private long cachedHead;
+    // only used by the interpreter, whether release was called and nothing was written since
+    private boolean localReleased;
+
+    private volatile boolean closed;
+    private volatile boolean released;
+    private volatile boolean error;
+
+    public AsyncOutput(PrintStream target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the size of the buffer in characters, rounded up to the next power of two
+     */
+    public AsyncOutput(PrintStream target, int capacity) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new char[size];
+        this.mask = size - 1;
+        this.target = target;
+        startDrainer();
+    }
+
+    /**
+     * @return whether the output is written to the stream
+     */
+    public boolean isFor(PrintStream stream) {
+        return target == stream;
+    }
+
+    public void print(char c) {
+        write(c);
+    }
+
+    public void print(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void write(char c) {
+        if (localReleased) {
+            resume();
+        }
+        if (localTail - cachedHead == buffer.length) {
+            cachedHead = head.get();
+            int idle = 0;
+            while (localTail - cachedHead == buffer.length) {
+                idle = idle(idle);
+                cachedHead = head.get();
+            }
+        }
+        buffer[(int) localTail & mask] = c;
+        localTail++;
+        tail.lazySet(localTail);
+    }
+
+    /**
+     * Waits until everything written so far is written to the target and the target is flushed
+     */
+    public void flush() {
+        tail.set(localTail);
+        Thread current = drainer();
+        LockSupport.unpark(current);
+        int idle = 0;
+        while (flushed.get() < localTail && current != null && current.isAlive()) {
+            idle = idle(idle);
+        }
+    }
+
+    /**
+     * Flushes and lets the drainer thread stop if nothing is written for a while, the next output starts it again
+     */
+    public void release() {
+        flush();
+        localReleased = true;
+        released = true;
+    }
+
+    /**
+     * Flushes and stops the drainer thread, the target is not closed
+     */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        Thread current = drainer();
+        if (current == null) {
+            return;
+        }
+        LockSupport.unpark(current);
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized Thread drainer() {
+        return drainer;
+    }
+
+    private synchronized void resume() {
+        localReleased = false;
+        released = false;
+        if (drainer == null) {
+            startDrainer();
+        }
+    }
+
+    private synchronized void startDrainer() {
+        drainer = new Thread(this::drain, "grsbpl-output");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @return whether the drainer stopped, which it only does if it is released and everything was written
+     */
+    private synchronized boolean stopDrainer(long h) {
+        if (released && tail.get() == h) {
+            drainer = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether writing to the target failed, the output after the failure is lost
+     */
+    public boolean checkError() {
+        return error;
+    }
+
+    private void drain() {
+        long h = head.get();
+        boolean unflushed = false;
+        int idle = 0;
+        long idleSince = 0;
+        while (true) {
+            long t = tail.get();
+            if (t == h) {
+                if (unflushed) {
+                    unflushed = false;
+                    // flushes the target
+                    if (target.checkError()) {
+                        error = true;
+                    }
+                }
+                flushed.set(h);
+                if (closed && tail.get() == h) {
+                    return;
+                }
+                if (idle == 0) {
+                    idleSince = System.nanoTime();
+                } else if (released && System.nanoTime() - idleSince > RELEASED_IDLE_NANOS && stopDrainer(h)) {
+                    return;
+                }
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            int from = (int) h & mask;
+            int length = (int) Math.min(t - h, buffer.length - from);
+            if (!error) {
+                // a surrogate pair split by the end of the buffer is joined by the encoder of the target
+                target.print(String.valueOf(buffer, from, length));
+                unflushed = true;
+            }
+            h += length;
+            head.lazySet(h);
+        }
+    }
+
+    private static int idle(int idle) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - SPINS - YIELDS, 10)));
+        }
+        return idle + 1;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * Cancels a running program from another thread
+ * <p>
+ * The interpreter only looks at the token at backward jumps and function calls, so a cancelled program stops
+ * after at most one straight run of instructions.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
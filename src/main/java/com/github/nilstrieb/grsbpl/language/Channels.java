@@ -0,0 +1,44 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The channels used by {@code send} and {@code recv}, identified by numbers from 0 to {@value MAX_CHANNELS} - 1
+ * <p>
+ * Programs in different interpreters can talk to each other by using the same channels. Channels are created when
+ * they are used for the first time.
+ */
+public class Channels {
+
+    public static final int MAX_CHANNELS = 1024;
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicReferenceArray<IntChannel> channels = new AtomicReferenceArray<>(MAX_CHANNELS);
+    private final int capacity;
+
+    public Channels() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the capacity of every channel
+     */
+    public Channels(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the id is out of range
+     */
+    public IntChannel get(int id) {
+        if (id < 0 || id >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channel " + id + " does not exist, channels go from 0 to " + (MAX_CHANNELS - 1));
+        }
+        IntChannel channel = channels.get(id);
+        if (channel == null) {
+            channels.compareAndSet(id, null, new IntChannel(capacity));
+            channel = channels.get(id);
+        }
+        return channel;
+    }
+}
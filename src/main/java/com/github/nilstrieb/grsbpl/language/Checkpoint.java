@@ -0,0 +1,177 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a running program, to continue it later with {@link Interpreter#resume(Program, Checkpoint)}
+ * <p>
+ * A checkpoint holds the position, the stack, variables and return position of every stack frame, the memory, the
+ * maps and the instruction count. It is a copy, so it can be written on another thread while the program continues.
+ * Checkpoints are only taken at backward jumps and calls, and not in runs that spawned calls. Output and input are
+ * not part of it: the output after the checkpoint is written again when the program is resumed, and the input is read
+ * from wherever the resumed run reads it. Channels are not saved either.
+ */
+public final class Checkpoint {
+    private static final int MAGIC = 0x47525343; // GRSC
+    private static final int FORMAT_VERSION = 1;
+
+    final long fingerprint;
+    final long instructionCount;
+    /**
+     * The position of the goto or call that is executed first when resuming
+     */
+    final int position;
+    final Frame[] frames;
+    final int[] memory;
+    /**
+     * The entries of every map, see {@link IntIntMap#entries()}
+     */
+    final int[][] maps;
+
+    private Checkpoint(long fingerprint, long instructionCount, int position, Frame[] frames, int[] memory, int[][] maps) {
+        this.fingerprint = fingerprint;
+        this.instructionCount = instructionCount;
+        this.position = position;
+        this.frames = frames;
+        this.memory = memory;
+        this.maps = maps;
+    }
+
+    /**
+     * Copies the state, the frames are ordered from the outermost to the current one
+     */
+    static Checkpoint capture(Program program, long instructionCount, int position, List<StackFrame> frames,
+                              Memory memory, List<IntIntMap> maps) {
+        Frame[] copiedFrames = new Frame[frames.size()];
+        for (int i = 0; i < copiedFrames.length; i++) {
+            StackFrame frame = frames.get(i);
+            Map<String, Integer> variables = frame.getVariables();
+            String[] names = variables.keySet().toArray(new String[0]);
+            int[] values = new int[names.length];
+            for (int j = 0; j < names.length; j++) {
+                values[j] = variables.get(names[j]);
+            }
+            copiedFrames[i] = new Frame(frame.getPosition(), frame.getStack().toArray(), names, values);
+        }
+        int[][] copiedMaps = new int[maps.size()][];
+        for (int i = 0; i < copiedMaps.length; i++) {
+            copiedMaps[i] = maps.get(i).entries();
+        }
+        return new Checkpoint(program.fingerprint(), instructionCount, position, copiedFrames,
+                memory == null ? new int[0] : memory.toArray(), copiedMaps);
+    }
+
+    public boolean isFor(Program program) {
+        return fingerprint == program.fingerprint();
+    }
+
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(fingerprint);
+        out.writeLong(instructionCount);
+        out.writeInt(position);
+        out.writeInt(frames.length);
+        for (Frame frame : frames) {
+            out.writeInt(frame.position);
+            writeInts(out, frame.stack);
+            out.writeInt(frame.names.length);
+            for (int i = 0; i < frame.names.length; i++) {
+                out.writeUTF(frame.names[i]);
+                out.writeInt(frame.values[i]);
+            }
+        }
+        writeInts(out, memory);
+        out.writeInt(maps.length);
+        for (int[] map : maps) {
+            writeInts(out, map);
+        }
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads a checkpoint written by {@link #write(DataOutput)}
+     *
+     * @throws IOException if the data is not a checkpoint
+     */
+    public static Checkpoint read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a GRSBPL checkpoint");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported checkpoint format version " + version);
+        }
+        long fingerprint = in.readLong();
+        long instructionCount = in.readLong();
+        int position = in.readInt();
+        Frame[] frames = new Frame[length(in)];
+        if (frames.length == 0) {
+            throw new IOException("Checkpoint without stack frames");
+        }
+        for (int i = 0; i < frames.length; i++) {
+            int framePosition = in.readInt();
+            int[] stack = readInts(in);
+            String[] names = new String[length(in)];
+            int[] values = new int[names.length];
+            for (int j = 0; j < names.length; j++) {
+                names[j] = in.readUTF();
+                values[j] = in.readInt();
+            }
+            frames[i] = new Frame(framePosition, stack, names, values);
+        }
+        int[] memory = readInts(in);
+        int[][] maps = new int[length(in)][];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = readInts(in);
+        }
+        return new Checkpoint(fingerprint, instructionCount, position, frames, memory, maps);
+    }
+
+    private static int length(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid checkpoint length " + length);
+        }
+        return length;
+    }
+
+    private static int[] readInts(DataInput in) throws IOException {
+        int[] values = new int[length(in)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    static final class Frame {
+        /**
+         * The return position, unused for the current frame
+         */
+        final int position;
+        final int[] stack;
+        final String[] names;
+        final int[] values;
+
+        Frame(int position, int[] stack, String[] names, int[] values) {
+            this.position = position;
+            this.stack = stack;
+            this.names = names;
+            this.values = values;
+        }
+    }
+}
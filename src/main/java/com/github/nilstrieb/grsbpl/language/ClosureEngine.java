@@ -0,0 +1,454 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import com.github.nilstrieb.grsbpl.language.Program.FunctionData;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import static com.github.nilstrieb.grsbpl.language.TokenType.*;
+
+/**
+ * The program compiled to one small node object per token position, used by {@link ExecutionEngine#CLOSURE_TREE}
+ * <p>
+ * Every node holds its resolved operands, like the value of a number, the target of a goto or the function of a call,
+ * and returns the position of the next node. Nothing is looked up by name while running, except variables. Rare
+ * instructions (io, memory, maps, parallelism, channels, return) and instructions with invalid operands are left to
+ * the token switch of the interpreter, so both engines behave exactly the same, including their errors.
+ */
+class ClosureEngine {
+
+    private final Program program;
+    private final int size;
+    private final Node[] nodes;
+
+    private ClosureEngine(Program program) {
+        this.program = program;
+        this.size = program.size();
+        this.nodes = new Node[size];
+    }
+
+    /**
+     * @param interpreted positions of calls that have to go through the interpreter, like host function calls
+     * @param profile     earlier runs of the program, null to optimize everything
+     */
+    static ClosureEngine compile(Program program, IntPredicate interpreted, ExecutionProfile profile) {
+        ClosureEngine engine = new ClosureEngine(program);
+        for (int position = 0; position < engine.size; position++) {
+            engine.nodes[position] = engine.compile(position, interpreted);
+        }
+        LoopOptimizer.optimize(engine.nodes, profile);
+        return engine;
+    }
+
+    boolean isFor(Program program) {
+        return this.program == program && size == program.size();
+    }
+
+    Node[] nodes() {
+        return nodes;
+    }
+
+    private Node compile(int position, IntPredicate interpreted) {
+        List<Token> tokens = program.tokens();
+        Map<String, Integer> labels = program.labels();
+        Map<String, FunctionData> functions = program.functions();
+        Token token = tokens.get(position);
+        int next = position + 1;
+        return switch (token.getType()) {
+            case CHARACTER -> new Push(next, token.getIntValue());
+            case CHAR -> new Push(next, (char) token.getValue());
+            case AMPERSAND -> isIdentifier(next) ? new Store(next + 1, name(next)) : new Interpreted(position);
+            case AT -> isIdentifier(next) ? new Load(next + 1, name(next)) : new Interpreted(position);
+            case PLUS -> new Add(next);
+            case MINUS -> new Subtract(next);
+            case STAR -> new Multiply(next);
+            case SLASH -> new Divide(next);
+            case PERCENT -> new Modulo(next);
+            case BNOT -> new BitwiseNot(next);
+            case AND -> new And(next);
+            case OR -> new Or(next);
+            case XOR -> new Xor(next);
+            case NOT -> new Not(next);
+            case DUP -> new Dup(next);
+            case SWAP -> new Swap(next);
+            case POP -> new Pop(next);
+            case COLUMN -> isIdentifier(next) ? new Skip(next + 1) : new Interpreted(position);
+            case FUNCTION -> isIdentifier(next) && next + 1 < size && tokens.get(next + 1).getType() == CHARACTER
+                    ? new Skip(next + 2) : new Interpreted(position);
+            case GOTO -> {
+                if (!isIdentifier(next)) {
+                    yield new Interpreted(position);
+                }
+                Integer target = labels.get(name(next));
+                yield new Goto(next + 1, target == null ? -1 : target, name(next));
+            }
+            case IDENTIFIER -> {
+                FunctionData fn = functions.get(token.getStringValue());
+                yield fn == null || interpreted.test(position) ? new Interpreted(position) : new Call(next, fn);
+            }
+            default -> new Interpreted(position);
+        };
+    }
+
+    private boolean isIdentifier(int position) {
+        return position < size && program.tokens().get(position).getType() == IDENTIFIER;
+    }
+
+    private String name(int position) {
+        return program.tokens().get(position).getStringValue();
+    }
+
+    /**
+     * A single instruction
+     */
+    abstract static class Node {
+        /**
+         * The position after the instruction
+         */
+        final int next;
+
+        Node(int next) {
+            this.next = next;
+        }
+
+        /**
+         * @return the position of the next node to execute
+         */
+        abstract int execute(Interpreter interpreter);
+    }
+
+    ///// values
+
+    static final class Push extends Node {
+        final int value;
+
+        Push(int next, int value) {
+            super(next);
+            this.value = value;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.stack().push(value);
+            return next;
+        }
+    }
+
+    static final class Store extends Node {
+        final String name;
+
+        Store(int next, String name) {
+            super(next);
+            this.name = name;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.variables().put(name, interpreter.stack().pop());
+            return next;
+        }
+    }
+
+    static final class Load extends Node {
+        final String name;
+
+        Load(int next, String name) {
+            super(next);
+            this.name = name;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.stack().push(interpreter.variables().get(name));
+            return next;
+        }
+    }
+
+    ///// operators
+
+    static final class Add extends Node {
+        Add(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() + b);
+            return next;
+        }
+    }
+
+    static final class Subtract extends Node {
+        Subtract(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() - b);
+            return next;
+        }
+    }
+
+    static final class Multiply extends Node {
+        Multiply(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() * b);
+            return next;
+        }
+    }
+
+    static final class Divide extends Node {
+        Divide(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() / b);
+            return next;
+        }
+    }
+
+    static final class Modulo extends Node {
+        Modulo(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() % b);
+            return next;
+        }
+    }
+
+    static final class BitwiseNot extends Node {
+        BitwiseNot(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            stack.push(~stack.pop());
+            return next;
+        }
+    }
+
+    static final class And extends Node {
+        And(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() & b);
+            return next;
+        }
+    }
+
+    static final class Or extends Node {
+        Or(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() | b);
+            return next;
+        }
+    }
+
+    static final class Xor extends Node {
+        Xor(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            int b = stack.pop();
+            stack.push(stack.pop() ^ b);
+            return next;
+        }
+    }
+
+    static final class Not extends Node {
+        Not(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            stack.push(stack.pop() == 0 ? 1 : 0);
+            return next;
+        }
+    }
+
+    static final class Dup extends Node {
+        Dup(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            stack.push(stack.peek());
+            return next;
+        }
+    }
+
+    static final class Swap extends Node {
+        Swap(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.stack().swap();
+            return next;
+        }
+    }
+
+    static final class Pop extends Node {
+        Pop(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            if (stack.isEmpty()) {
+                interpreter.position = next;
+                throw interpreter.runException("Cannot pop empty stack");
+            }
+            stack.pop();
+            return next;
+        }
+    }
+
+    ///// control flow
+
+    /**
+     * Labels and function headers
+     */
+    static final class Skip extends Node {
+        Skip(int next) {
+            super(next);
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            return next;
+        }
+    }
+
+    static final class Goto extends Node {
+        final int target;
+        final String label;
+        /**
+         * Jumps to an earlier position, so the limits have to be checked
+         */
+        final boolean backward;
+        /**
+         * The amount of instructions that were skipped by threading the jump through other gotos
+         */
+        final int skipped;
+        /**
+         * The positions of the gotos the jump was threaded through, they are recorded as taken
+         */
+        final int[] skippedGotos;
+
+        Goto(int next, int target, String label) {
+            this(next, target, label, target != -1 && target < next, 0, new int[0]);
+        }
+
+        Goto(int next, int target, String label, boolean backward, int skipped, int[] skippedGotos) {
+            super(next);
+            this.target = target;
+            this.label = label;
+            this.backward = backward;
+            this.skipped = skipped;
+            this.skippedGotos = skippedGotos;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            boolean jumped = interpreter.stack().peek() != 0;
+            interpreter.recordBranch(next - 2, jumped);
+            if (!jumped) {
+                return next;
+            }
+            if (target == -1) {
+                interpreter.position = next;
+                throw interpreter.runException("Label '" + label + "' not found");
+            }
+            if (interpreter.limited && backward) {
+                interpreter.position = next;
+                interpreter.checkLimits();
+            }
+            if (skipped != 0) {
+                interpreter.countInstructions(skipped);
+                for (int skippedGoto : skippedGotos) {
+                    interpreter.recordBranch(skippedGoto, true);
+                }
+            }
+            return target;
+        }
+    }
+
+    static final class Call extends Node {
+        private final FunctionData fn;
+
+        Call(int next, FunctionData fn) {
+            super(next);
+            this.fn = fn;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.position = next;
+            interpreter.call(fn);
+            return interpreter.position;
+        }
+    }
+
+    /**
+     * Executed by the token switch of the interpreter
+     */
+    static final class Interpreted extends Node {
+        private final int position;
+
+        Interpreted(int position) {
+            super(position + 1);
+            this.position = position;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            interpreter.position = position;
+            interpreter.executeNext();
+            return interpreter.position;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * How an {@link Interpreter} executes programs
+ */
+public enum ExecutionEngine {
+    /**
+     * Reads the tokens while running and switches on their type
+     */
+    TOKEN_SWITCH,
+    /**
+     * Compiles the program to a node object per instruction first, that holds its resolved operands like jump
+     * targets and called functions. Pays off for programs that run longer than a few milliseconds.
+     */
+    CLOSURE_TREE
+}
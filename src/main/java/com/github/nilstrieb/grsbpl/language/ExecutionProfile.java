@@ -0,0 +1,187 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * What earlier runs of a program did, so a new run can decide upfront what to optimize instead of starting from zero
+ * <p>
+ * The profile counts how often every goto jumped or fell through, how often every function was called and how many
+ * instructions a run took on average. It belongs to a single program, identified by its {@link Program#fingerprint()}.
+ * When it is used for a different program, the old counts are dropped. Spawned calls are not recorded.
+ * <p>
+ * It can be written with {@link #write(DataOutput)} at the end of a run and read back by the next one.
+ */
+public class ExecutionProfile {
+    private static final int MAGIC = 0x47525350; // GRSP
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Below this many instructions per run, compiling the program for the closure engine does not pay off
+     */
+    public static final long CLOSURE_ENGINE_INSTRUCTIONS = 1_000_000;
+    /**
+     * Loops whose backward goto jumps less often than this per run are not worth optimizing
+     */
+    static final long HOT_LOOP_ITERATIONS = 16;
+
+    private long fingerprint;
+    private long runs;
+    private long instructions;
+    // indexed by the position of the goto or the first instruction of the function
+    private long[] taken = new long[0];
+    private long[] notTaken = new long[0];
+    private long[] calls = new long[0];
+
+    public boolean isFor(Program program) {
+        return runs != 0 && fingerprint == program.fingerprint() && taken.length == program.size();
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public long getInstructionsPerRun() {
+        return runs == 0 ? 0 : instructions / runs;
+    }
+
+    /**
+     * @return the engine that is expected to run the program faster, based on the earlier runs
+     */
+    public ExecutionEngine suggestEngine(Program program) {
+        return isFor(program) && getInstructionsPerRun() >= CLOSURE_ENGINE_INSTRUCTIONS
+                ? ExecutionEngine.CLOSURE_TREE : ExecutionEngine.TOKEN_SWITCH;
+    }
+
+    /**
+     * @param position the position of the goto token
+     * @return how often the goto jumped
+     */
+    public long getTaken(int position) {
+        return position < taken.length ? taken[position] : 0;
+    }
+
+    /**
+     * @param position the position of the goto token
+     * @return how often the goto did not jump
+     */
+    public long getNotTaken(int position) {
+        return position < notTaken.length ? notTaken[position] : 0;
+    }
+
+    /**
+     * @param position the position of the first instruction of the function
+     */
+    public long getCalls(int position) {
+        return position < calls.length ? calls[position] : 0;
+    }
+
+    /**
+     * @param position the position of the backward goto of the loop
+     */
+    boolean isHotLoop(int position) {
+        return runs == 0 || getTaken(position) / runs >= HOT_LOOP_ITERATIONS;
+    }
+
+    ///// recording
+
+    /**
+     * Prepares recording a run, dropping the counts of other programs
+     */
+    void start(Program program) {
+        if (!isFor(program)) {
+            fingerprint = program.fingerprint();
+            runs = 0;
+            instructions = 0;
+            taken = new long[program.size()];
+            notTaken = new long[program.size()];
+            calls = new long[program.size()];
+        }
+    }
+
+    void finish(long instructions) {
+        runs++;
+        this.instructions += instructions;
+    }
+
+    void branch(int position, boolean jumped) {
+        if (jumped) {
+            taken[position]++;
+        } else {
+            notTaken[position]++;
+        }
+    }
+
+    void call(int position) {
+        calls[position]++;
+    }
+
+    ///// persistence
+
+    /**
+     * Writes the profile, only positions with non-zero counts are written
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(fingerprint);
+        out.writeInt(taken.length);
+        out.writeLong(runs);
+        out.writeLong(instructions);
+        writeCounts(out, taken);
+        writeCounts(out, notTaken);
+        writeCounts(out, calls);
+    }
+
+    private static void writeCounts(DataOutput out, long[] counts) throws IOException {
+        out.writeInt((int) Arrays.stream(counts).filter(count -> count != 0).count());
+        for (int position = 0; position < counts.length; position++) {
+            if (counts[position] != 0) {
+                out.writeInt(position);
+                out.writeLong(counts[position]);
+            }
+        }
+    }
+
+    /**
+     * Reads a profile written by {@link #write(DataOutput)}
+     *
+     * @throws IOException if the data is not a profile
+     */
+    public static ExecutionProfile read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a GRSBPL profile");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported profile format version " + version);
+        }
+        ExecutionProfile profile = new ExecutionProfile();
+        profile.fingerprint = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid profile size " + size);
+        }
+        profile.runs = in.readLong();
+        profile.instructions = in.readLong();
+        profile.taken = readCounts(in, size);
+        profile.notTaken = readCounts(in, size);
+        profile.calls = readCounts(in, size);
+        return profile;
+    }
+
+    private static long[] readCounts(DataInput in, int size) throws IOException {
+        long[] counts = new long[size];
+        int entries = in.readInt();
+        for (int i = 0; i < entries; i++) {
+            int position = in.readInt();
+            if (position < 0 || position >= size) {
+                throw new IOException("Invalid profile position " + position);
+            }
+            counts[position] = in.readLong();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,292 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import com.github.nilstrieb.grsbpl.language.Program.FunctionData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A binary record of what a run did, to reproduce it later
+ * <p>
+ * The trace records every call with the position of the function, every return and taken goto with the position of
+ * its token and every value that {@code in} read. The records are written into a memory-mapped ring file, so the
+ * trace survives a crash of the JVM and only the latest records are kept when the file is full. Every record is 8
+ * bytes, the type followed by the value.
+ * <p>
+ * A complete trace can be replayed, the run then reads its input from the trace instead of the real input and fails
+ * with a {@link ReplayException} as soon as it does something else than the recorded run. The replay has to use the
+ * engine the trace was recorded with, see {@link #getEngine()}. Spawned calls are not recorded, so programs that read
+ * input in spawned calls can't be replayed.
+ */
+public class ExecutionTrace {
+    private static final int MAGIC = 0x47525354; // GRST
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int CALL = 1;
+    public static final int RETURN = 2;
+    public static final int JUMP = 3;
+    public static final int INPUT = 4;
+    private static final String[] TYPE_NAMES = {"?", "call", "return", "goto", "input"};
+
+    private static final int COUNT_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 8;
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final MappedByteBuffer buffer;
+    private final boolean replay;
+    private final int capacity;
+    /**
+     * The amount of records written in a recording or read in a replay
+     */
+    private long count;
+    /**
+     * The amount of records in the file
+     */
+    private long recorded;
+    /**
+     * The index of the next record in the ring
+     */
+    private int index;
+
+    private ExecutionTrace(MappedByteBuffer buffer, boolean replay, int capacity) {
+        this.buffer = buffer;
+        this.replay = replay;
+        this.capacity = capacity;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Creates a trace that records the runs of an interpreter into the file, every run overwrites the trace
+     *
+     * @param capacity the amount of records the file holds
+     */
+    public static ExecutionTrace record(Path file, int capacity) throws IOException {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Trace capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            ExecutionTrace trace = new ExecutionTrace(buffer, false, capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putInt(16, capacity);
+            return trace;
+        }
+    }
+
+    /**
+     * Opens a trace written by {@link #record(Path, int)}, to replay or summarize it
+     *
+     * @throws IOException if the file is not a trace
+     */
+    public static ExecutionTrace open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a GRSBPL trace");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a GRSBPL trace");
+            }
+            int version = buffer.getInt(4);
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported trace format version " + version);
+            }
+            int capacity = buffer.getInt(16);
+            int engine = buffer.getInt(20);
+            if (capacity < 1 || channel.size() != HEADER_SIZE + (long) capacity * RECORD_SIZE
+                    || engine < 0 || engine >= ExecutionEngine.values().length) {
+                throw new IOException("Invalid trace header");
+            }
+            ExecutionTrace trace = new ExecutionTrace(buffer, true, capacity);
+            trace.recorded = buffer.getLong(COUNT_OFFSET);
+            return trace;
+        }
+    }
+
+    public boolean isFor(Program program) {
+        return buffer.getLong(8) == program.fingerprint();
+    }
+
+    /**
+     * @return the engine the trace was recorded with
+     */
+    public ExecutionEngine getEngine() {
+        return ExecutionEngine.values()[buffer.getInt(20)];
+    }
+
+    /**
+     * @return the amount of records of the recorded run, including the ones that were overwritten
+     */
+    public long getRecordCount() {
+        return recorded;
+    }
+
+    /**
+     * @return whether the file still holds all records of the run, only complete traces can be replayed
+     */
+    public boolean isComplete() {
+        return recorded <= capacity;
+    }
+
+    ///// recording and replaying
+
+    /**
+     * @throws IllegalArgumentException if a replayed trace was not recorded for the program and engine or is incomplete
+     */
+    void start(Program program, ExecutionEngine engine) {
+        if (replay) {
+            if (!isFor(program) || engine != getEngine() || !isComplete()) {
+                throw new IllegalArgumentException("The trace can't be replayed by this program and engine");
+            }
+        } else {
+            buffer.putLong(8, program.fingerprint());
+            buffer.putInt(20, engine.ordinal());
+            recorded = 0;
+            buffer.putLong(COUNT_OFFSET, 0);
+        }
+        count = 0;
+        index = 0;
+    }
+
+    /**
+     * @throws ReplayException if a replayed run has more records than the trace
+     */
+    void finish() {
+        if (replay && count != recorded) {
+            throw new ReplayException("Replay ended after " + count + " of " + recorded + " records of the trace");
+        }
+    }
+
+    /**
+     * Records an event or checks it against the trace when replaying
+     *
+     * @throws ReplayException if the replayed run diverged from the trace
+     */
+    void event(int type, int value) {
+        long record = (long) type << 32 | (value & 0xFFFFFFFFL);
+        if (replay) {
+            long expected = next();
+            if (expected != record) {
+                throw new ReplayException("Replay diverged from the trace at record " + count + ": expected "
+                        + describe(expected) + " but was " + describe(record));
+            }
+            return;
+        }
+        buffer.putLong(HEADER_SIZE + index * RECORD_SIZE, record);
+        if (++index == capacity) {
+            index = 0;
+        }
+        buffer.putLong(COUNT_OFFSET, ++count);
+    }
+
+    /**
+     * Reads a value for {@code in} from the input and records it, or takes it from the trace when replaying
+     *
+     * @throws ReplayException if the replayed run diverged from the trace
+     */
+    int input(InputStream in) throws IOException {
+        if (replay) {
+            long expected = next();
+            if ((int) (expected >>> 32) != INPUT) {
+                throw new ReplayException("Replay diverged from the trace at record " + count + ": expected "
+                        + describe(expected) + " but was input");
+            }
+            return (int) expected;
+        }
+        int value = in.read();
+        event(INPUT, value);
+        return value;
+    }
+
+    private long next() {
+        if (count == recorded) {
+            throw new ReplayException("Replay reached the end of the trace after " + recorded + " records");
+        }
+        count++;
+        return buffer.getLong(HEADER_SIZE + index++ * RECORD_SIZE);
+    }
+
+    private static String describe(long record) {
+        int type = (int) (record >>> 32);
+        return (type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "?") + " " + (int) record;
+    }
+
+    ///// summary
+
+    /**
+     * Writes the amount of records of every type and the most taken gotos and most called functions
+     *
+     * @param program the program the trace was recorded for, to show lines, labels and function names
+     * @param top     how many gotos and functions are shown
+     */
+    public void writeSummary(Program program, PrintStream out, int top) {
+        long[] types = new long[TYPE_NAMES.length];
+        Map<Integer, Long> jumps = new HashMap<>();
+        Map<Integer, Long> calls = new HashMap<>();
+        long kept = Math.min(recorded, capacity);
+        // the oldest record that was not overwritten
+        int position = (int) (recorded <= capacity ? 0 : recorded % capacity);
+        for (long i = 0; i < kept; i++) {
+            long record = buffer.getLong(HEADER_SIZE + position * RECORD_SIZE);
+            position = position + 1 == capacity ? 0 : position + 1;
+            int type = (int) (record >>> 32);
+            if (type <= 0 || type >= TYPE_NAMES.length) {
+                continue;
+            }
+            types[type]++;
+            if (type == JUMP) {
+                jumps.merge((int) record, 1L, Long::sum);
+            } else if (type == CALL) {
+                calls.merge((int) record, 1L, Long::sum);
+            }
+        }
+
+        out.printf("%,d records, engine %s%n", recorded, getEngine());
+        if (!isComplete()) {
+            out.printf("only the last %,d records are kept, the trace can't be replayed%n", kept);
+        }
+        out.printf("%,d calls, %,d returns, %,d taken gotos, %,d input values%n",
+                types[CALL], types[RETURN], types[JUMP], types[INPUT]);
+
+        List<Token> tokens = program.tokens();
+        out.println();
+        out.println("Most taken gotos:");
+        for (Map.Entry<Integer, Long> jump : hottest(jumps, top)) {
+            int at = jump.getKey();
+            String label = at + 1 < tokens.size() ? tokens.get(at + 1).getStringValue() : "?";
+            out.printf("  %,12d  line %d  goto %s%n", jump.getValue(), line(tokens, at), label);
+        }
+        Map<Integer, String> names = new HashMap<>();
+        for (FunctionData fn : program.functions().values()) {
+            names.put(fn.index, fn.name);
+        }
+        out.println();
+        out.println("Most called functions:");
+        for (Map.Entry<Integer, Long> call : hottest(calls, top)) {
+            out.printf("  %,12d  line %d  %s%n", call.getValue(), line(tokens, call.getKey()),
+                    names.getOrDefault(call.getKey(), "?"));
+        }
+    }
+
+    private static List<Map.Entry<Integer, Long>> hottest(Map<Integer, Long> counts, int top) {
+        List<Map.Entry<Integer, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<Integer, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return entries.subList(0, Math.min(top, entries.size()));
+    }
+
+    private static int line(List<Token> tokens, int position) {
+        return position >= 0 && position < tokens.size() ? tokens.get(position).getLineNumber() : 0;
+    }
+}
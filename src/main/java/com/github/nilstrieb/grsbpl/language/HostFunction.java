@@ -0,0 +1,12 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * A function implemented in Java, registered with {@link Interpreter#addHostFunction(String, int, HostFunction)}
+ * <p>
+ * It is called like a function defined with {@code function}: the arguments are popped from the stack, the first
+ * argument is the one that was pushed first, and the return value is pushed.
+ */
+@FunctionalInterface
+public interface HostFunction {
+    int call(int[] args);
+}
@@ -0,0 +1,112 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer of integers for exactly one sending and one receiving thread
+ * <p>
+ * Both sides keep a cached copy of the index of the other side, so they only read the shared index when the buffer
+ * looks full or empty. Waiting spins first and parks for increasing amounts of time afterwards.
+ */
+public class IntChannel {
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final int[] buffer;
+    private final int mask;
+
+    // written by the receiver
+    private final AtomicLong head = new AtomicLong();
+    // written by the sender
+    private final AtomicLong tail = new AtomicLong();
+
+    // only used by the sender
+    private long cachedHead;
+    // only used by the receiver
+    private long cachedTail;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public IntChannel(int capacity) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the channel is full
+     */
+    public boolean offer(int value) {
+        long t = tail.get();
+        if (t - cachedHead == buffer.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Waits until there is space in the channel
+     *
+     * @param token stops waiting when cancelled, may be null
+     * @throws CancellationException if the token was cancelled or the thread interrupted while waiting
+     */
+    public void send(int value, CancellationToken token) {
+        int idle = 0;
+        while (!offer(value)) {
+            idle = idle(idle, token);
+        }
+    }
+
+    /**
+     * Waits until there is a value in the channel
+     *
+     * @param token stops waiting when cancelled, may be null
+     * @throws CancellationException if the token was cancelled or the thread interrupted while waiting
+     */
+    public int receive(CancellationToken token) {
+        long h = head.get();
+        int idle = 0;
+        while (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h != cachedTail) {
+                break;
+            }
+            idle = idle(idle, token);
+        }
+        int value = buffer[(int) h & mask];
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private static int idle(int idle, CancellationToken token) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            if (Thread.interrupted() || (token != null && token.isCancelled())) {
+                throw new CancellationException();
+            }
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - SPINS - YIELDS, 10)));
+        }
+        return idle + 1;
+    }
+}
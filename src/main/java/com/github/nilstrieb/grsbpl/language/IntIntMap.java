@@ -0,0 +1,207 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map from integers to integers, using open addressing with linear probing
+ * <p>
+ * Keys and values are stored in plain arrays, so nothing is allocated except when the table grows.
+ * Removing uses backward shift deletion, so there are no tombstones.
+ */
+public class IntIntMap {
+
+    private static final int FREE_KEY = 0;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    // the free key marks empty slots, so it is stored outside of the table
+    private boolean hasFreeKey;
+    private int freeKeyValue;
+
+    public IntIntMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeKeyValue = value;
+            return;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size >= threshold) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException if the key is not in the map
+     */
+    public int get(int key) {
+        if (key == FREE_KEY) {
+            if (hasFreeKey) {
+                return freeKeyValue;
+            }
+            throw new NoSuchElementException("Key " + key + " not found");
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        throw new NoSuchElementException("Key " + key + " not found");
+    }
+
+    /**
+     * @return the value or defaultValue if the key is not in the map
+     */
+    public int get(int key, int defaultValue) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : defaultValue;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean contains(int key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the key was in the map
+     */
+    public boolean remove(int key) {
+        if (key == FREE_KEY) {
+            if (hasFreeKey) {
+                hasFreeKey = false;
+                size--;
+                return true;
+            }
+            return false;
+        }
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == FREE_KEY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        shiftBack(slot);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves following entries of the same probe sequence into the freed slot, so lookups never stop too early
+     */
+    private void shiftBack(int free) {
+        int slot = (free + 1) & mask;
+        while (keys[slot] != FREE_KEY) {
+            int home = slot(keys[slot]);
+            // the entry can move if its home slot is not between the free slot and its current slot (cyclic)
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys[free] = keys[slot];
+                values[free] = values[slot];
+                free = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[free] = FREE_KEY;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != FREE_KEY) {
+                int slot = slot(key);
+                while (keys[slot] != FREE_KEY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the keys and values of all entries, alternating
+     */
+    int[] entries() {
+        int[] entries = new int[size * 2];
+        int i = 0;
+        if (hasFreeKey) {
+            entries[i++] = FREE_KEY;
+            entries[i++] = freeKeyValue;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE_KEY) {
+                entries[i++] = keys[slot];
+                entries[i++] = values[slot];
+            }
+        }
+        return entries;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        hasFreeKey = false;
+        size = 0;
+    }
+}
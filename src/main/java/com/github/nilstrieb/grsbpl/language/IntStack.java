@@ -1,28 +1,49 @@
 package com.github.nilstrieb.grsbpl.language;
 
+import java.util.Arrays;
 import java.util.OptionalInt;
 import java.util.function.BiFunction;
 
 /**
  * A stack that exclusively holds integers
+ * <p>
+ * How it grows, shrinks and how deep it can get is decided by its {@link StackPolicy}.
  */
 public class IntStack {
     private int[] values;
     private int pointer;
-
-    private static final int INITIAL_CAPACITY = 64;
+    private final StackPolicy policy;
+    // popping below this shrinks the stack, -1 when it should not shrink
+    private int shrinkBelow = -1;
 
     public IntStack() {
-        this(INITIAL_CAPACITY);
+        this(StackPolicy.DEFAULT);
     }
 
     public IntStack(int initialCapacity) {
-        values = new int[initialCapacity];
+        this(StackPolicy.DEFAULT.withInitialCapacity(initialCapacity));
+    }
+
+    public IntStack(StackPolicy policy) {
+        this(policy, new int[policy.getInitialCapacity()]);
+    }
+
+    /**
+     * For stacks that store their values somewhere else
+     */
+    IntStack(StackPolicy policy, int[] values) {
+        this.policy = policy;
+        this.values = values;
         pointer = -1;
     }
 
+    /**
+     * @throws StackLimitException if the stack already holds the max depth of its policy
+     */
     public void push(int value) {
-        checkResize();
+        if (pointer == values.length - 1) {
+            grow();
+        }
         values[++pointer] = value;
     }
 
@@ -30,13 +51,35 @@ public class IntStack {
         if (pointer == -1) {
             throw new IndexOutOfBoundsException("Cannot pop below zero");
         }
-        return values[pointer--];
+        int value = values[pointer--];
+        if (pointer < shrinkBelow) {
+            shrink();
+        }
+        return value;
     }
 
     public boolean isEmpty() {
         return pointer < 0;
     }
 
+    public int size() {
+        return pointer + 1;
+    }
+
+    /**
+     * Replaces a value, index 0 is the bottom of the stack
+     */
+    public void set(int index, int value) {
+        if (index < 0 || index > pointer) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+        values[index] = value;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
     public int peek() {
         return values[pointer];
     }
@@ -55,12 +98,44 @@ public class IntStack {
         push(function.apply(val1, val2));
     }
 
-    private void checkResize() {
-        if (pointer == values.length - 1) {
-            int[] newValues = new int[values.length * 2];
-            System.arraycopy(values, 0, newValues, 0, values.length);
-            this.values = newValues;
+    /**
+     * @return the values from the bottom to the top of the stack
+     */
+    int[] toArray() {
+        return Arrays.copyOf(values, pointer + 1);
+    }
+
+    public StackPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Empties the stack and drops its array, for stacks that moved their values somewhere else
+     */
+    void release() {
+        values = new int[0];
+        pointer = -1;
+        shrinkBelow = -1;
+    }
+
+    private void grow() {
+        if (values.length >= policy.getMaxDepth()) {
+            throw new StackLimitException(policy.getMaxDepth());
         }
+        values = Arrays.copyOf(values, policy.grow(values.length));
+        shrinkBelow = shrinkThreshold(values.length);
+    }
+
+    private void shrink() {
+        values = Arrays.copyOf(values, Math.max(policy.getInitialCapacity(), values.length / 2));
+        shrinkBelow = shrinkThreshold(values.length);
+    }
+
+    /**
+     * @return the size below which a stack with the capacity shrinks, -1 if it should not shrink
+     */
+    int shrinkThreshold(int capacity) {
+        return policy.isShrink() && capacity > policy.getInitialCapacity() ? capacity / 4 - 1 : -1;
     }
 
     public void swap() {
@@ -1,43 +1,617 @@
 package com.github.nilstrieb.grsbpl.language;
 
+import com.github.nilstrieb.grsbpl.language.Program.FunctionData;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static com.github.nilstrieb.grsbpl.language.TokenType.*;
 
 public class Interpreter {
 
     private static final int STACK_LIMIT = 1_000_000;
+    /**
+     * How many limit checks happen between two reads of the clock
+     */
+    private static final int CLOCK_INTERVAL = 1024;
+    /**
+     * Pure calls are run sequentially when the pool already has more queued work than this
+     */
+    private static final int SURPLUS_TASKS = 3;
+    /**
+     * Pure calls are run sequentially when they are nested in this many parallel calls, every level of parallel calls
+     * runs on the Java stack
+     */
+    private static final int MAX_PARALLEL_DEPTH = 16;
 
     private Stack<StackFrame> frames;
-    private Map<String, Integer> labels;
-    private Map<String, FunctionData> functions;
-    private List<Token> program;
-    private int position;
+    private Program program;
+    private List<Token> tokens;
+    int position;
 
-    public int run(List<Token> chars) {
-        program = chars;
-        frames = new Stack<>();
-        frames.push(new StackFrame());
-        functions = new HashMap<>();
-        labels = new HashMap<>();
+    private Memory memory;
+    private boolean externalMemory;
+    private List<IntIntMap> maps;
+    /**
+     * Whether the maps are shared with spawned calls, then the list is synchronized
+     */
+    private boolean sharedMaps;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private List<SpawnedCall> spawned;
+    private boolean parallelCalls;
+    private ParallelCalls parallelSites;
+    /**
+     * The amount of parallel calls this interpreter runs in
+     */
+    private int parallelDepth;
+    private Channels channels;
+    private boolean externalChannels;
+    private InputStream input;
+    private PrintStream output;
+    private boolean asyncOutput;
+    private StackPolicy stackPolicy = StackPolicy.DEFAULT;
+    private ExecutionEngine engine = ExecutionEngine.TOKEN_SWITCH;
+    private ClosureEngine closure;
+    private ExecutionProfile profileData;
+    private ExecutionTrace trace;
+    private AsyncOutput asyncWriter;
+    private final Map<String, HostFunctionData> hostFunctions = new HashMap<>();
+    /**
+     * The host function called at a position, resolved when the program is loaded, null without host functions
+     */
+    private HostFunctionData[] hostSites;
+
+    private final List<InterpreterListener> listenerList = new ArrayList<>();
+    private InterpreterListener listener;
+
+    private long instructionCount;
+    private long callCount;
+    private int maxFrameDepth;
+    private long bytesOutput;
+    private long unflushedBytes;
+
+    private long instructionLimit = Long.MAX_VALUE;
+    /**
+     * The instructions of a run and all calls it forked, shared by the forks when there is an instruction limit
+     */
+    private AtomicLong sharedInstructionCount;
+    /**
+     * The part of the instruction count that was already added to the shared count
+     */
+    private long sharedInstructions;
+    private long timeoutNanos;
+    private CancellationToken cancellationToken;
+    boolean limited;
+    private long deadline;
+    private int checksUntilClock;
+    private Consumer<Checkpoint> checkpointHandler;
+    private long checkpointInterval;
+    private long nextCheckpoint;
+    private volatile boolean checkpointRequested;
+
+    public int run(List<Token> tokens) {
+        return run(Program.compile(tokens));
+    }
+
+    public int run(Program program) {
+        load(program);
         position = 0;
+        execute();
+        return rest();
+    }
 
-        firstPass();
+    /**
+     * Runs the program with the variables set in the outermost frame. After the program succeeded, the variables of
+     * the outermost frame are written back into the map.
+     */
+    public int run(Program program, Map<String, Integer> variables) {
+        load(program);
+        frames.peek().getVariables().putAll(variables);
         position = 0;
+        execute();
+        variables.putAll(frames.get(0).getVariables());
+        return rest();
+    }
 
-        while (hasNext()) {
-            executeNext();
+    /**
+     * Continues the program from a checkpoint taken by an earlier run of it, instead of running it from the start
+     *
+     * @throws IllegalArgumentException if the checkpoint was taken from another program
+     */
+    public int resume(Program program, Checkpoint checkpoint) {
+        if (!checkpoint.isFor(program)) {
+            throw new IllegalArgumentException("The checkpoint was taken from another program");
         }
-
+        load(program);
+        frames.clear();
+        for (Checkpoint.Frame saved : checkpoint.frames) {
+            StackFrame frame = newFrame();
+            frame.setPosition(saved.position);
+            for (int value : saved.stack) {
+                frame.getStack().push(value);
+            }
+            for (int i = 0; i < saved.names.length; i++) {
+                frame.getVariables().put(saved.names[i], saved.values[i]);
+            }
+            frames.push(frame);
+        }
+        maxFrameDepth = frames.size();
+        if (checkpoint.memory.length > 0 || memory != null) {
+            memory().restore(checkpoint.memory);
+        }
+        for (int[] entries : checkpoint.maps) {
+            IntIntMap map = new IntIntMap();
+            for (int i = 0; i < entries.length; i += 2) {
+                map.put(entries[i], entries[i + 1]);
+            }
+            maps.add(map);
+        }
+        instructionCount = checkpoint.instructionCount;
+        position = checkpoint.position;
+        execute();
         return rest();
     }
 
-    private IntStack stack() {
+    /**
+     * Starts an interactive session with an empty program, that can be extended with {@link #evaluate(List)}
+     */
+    public void startSession() {
+        load(Program.empty());
+    }
+
+    /**
+     * Appends the tokens to the program of the session and executes them, keeping the stack and variables of the
+     * previous evaluations. Labels and functions of all previous evaluations can be used.
+     * <p>
+     * Code starting with a function definition is only added to the program, but not executed.
+     *
+     * @param tokens the tokens from the lexer, ending with {@link TokenType#EOF}
+     * @return the top value on the stack
+     */
+    public OptionalInt evaluate(List<Token> tokens) {
+        if (program == null) {
+            startSession();
+        }
+        int start = program.append(tokens);
+        resolveHostFunctions();
+        position = start;
+        try {
+            if (this.tokens.get(start).getType() != FUNCTION) {
+                execute();
+            }
+        } finally {
+            // running off the end inside a function ends the evaluation, the next one starts in the outermost frame
+            frames.setSize(1);
+        }
+        IntStack stack = stack();
+        return stack.isEmpty() ? OptionalInt.empty() : OptionalInt.of(stack.peek());
+    }
+
+    private void load(Program program) {
+        this.program = program;
+        tokens = program.tokens();
+        resolveHostFunctions();
+        frames = new Stack<>();
+        frames.push(newFrame());
+        if (!externalMemory) {
+            memory = null;
+        }
+        maps = new ArrayList<>();
+        sharedMaps = false;
+        spawned = new ArrayList<>();
+        if (!externalChannels) {
+            channels = null;
+        }
+        instructionCount = 0;
+        sharedInstructionCount = null;
+        sharedInstructions = 0;
+        callCount = 0;
+        maxFrameDepth = 1;
+        bytesOutput = 0;
+        unflushedBytes = 0;
+    }
+
+    private void execute() {
+        if (parallelCalls && (parallelSites == null || !parallelSites.isFor(program))) {
+            parallelSites = ParallelCalls.analyze(program);
+            closure = null;
+        }
+        if (engine == ExecutionEngine.CLOSURE_TREE && (closure == null || !closure.isFor(program))) {
+            closure = ClosureEngine.compile(program, this::isInterpretedCall,
+                    profileData != null && profileData.isFor(program) ? profileData : null);
+        }
+        limited = instructionLimit != Long.MAX_VALUE || timeoutNanos != 0 || cancellationToken != null
+                || checkpointHandler != null;
+        deadline = System.nanoTime() + timeoutNanos;
+        nextCheckpoint = System.nanoTime() + checkpointInterval;
+        checksUntilClock = CLOCK_INTERVAL;
+        if (asyncOutput && (asyncWriter == null || !asyncWriter.isFor(output()))) {
+            closeAsyncWriter();
+            asyncWriter = new AsyncOutput(output());
+        }
+        if (profileData != null) {
+            profileData.start(program);
+        }
+        if (trace != null) {
+            trace.start(program, engine);
+        }
+        long instructionsBefore = instructionCount;
+        try {
+            loop();
+            if (trace != null) {
+                try {
+                    trace.finish();
+                } catch (ReplayException e) {
+                    throw runException(e.getMessage());
+                }
+            }
+        } finally {
+            if (profileData != null) {
+                profileData.finish(instructionCount - instructionsBefore);
+            }
+            if (asyncWriter != null) {
+                // everything has to be written before the run returns, the drainer is kept for the next run
+                asyncWriter.release();
+            }
+        }
+    }
+
+    private void loop() {
+        if (listener == null) {
+            if (engine == ExecutionEngine.CLOSURE_TREE) {
+                runNodes();
+            } else {
+                while (hasNext()) {
+                    instructionCount++;
+                    executeNext();
+                }
+            }
+            flushOutput();
+        } else {
+            runWithListener();
+        }
+    }
+
+    private void runNodes() {
+        ClosureEngine.Node[] nodes = closure.nodes();
+        int end = tokens.size() - 1; // last token is EOF
+        int pc = position;
+        try {
+            while (pc < end) {
+                instructionCount++;
+                pc = nodes[pc].execute(this);
+            }
+        } catch (StackLimitException e) {
+            position = nodes[pc].next;
+            throw runException(e.getMessage());
+        }
+        position = pc;
+    }
+
+    /**
+     * Calls that the closure engine leaves to the token switch
+     */
+    private boolean isInterpretedCall(int position) {
+        return (hostSites != null && hostSites[position] != null)
+                || (parallelSites != null && parallelSites.site(position) != null);
+    }
+
+    /**
+     * Stop programs that execute more instructions than this, the limit is only checked at backward jumps and calls,
+     * so a program can overshoot it by the length of one straight run of instructions. The instructions of spawned and
+     * parallel calls count towards the limit of the run.
+     */
+    public void setInstructionLimit(long instructionLimit) {
+        this.instructionLimit = instructionLimit;
+    }
+
+    /**
+     * Stop programs that run longer than this, null for no timeout
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeoutNanos = timeout == null ? 0 : Math.max(1, timeout.toNanos());
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Takes checkpoints of all following runs and passes them to the handler, on the thread of the run. A checkpoint
+     * is taken at the first backward jump or call after every interval and after {@link #requestCheckpoint()}.
+     * Null stops taking checkpoints.
+     *
+     * @param interval the time between two checkpoints, null to only take requested ones
+     */
+    public void setCheckpoints(Consumer<Checkpoint> handler, Duration interval) {
+        this.checkpointHandler = handler;
+        this.checkpointInterval = handler == null || interval == null ? 0 : Math.max(1, interval.toNanos());
+    }
+
+    /**
+     * Takes a checkpoint at the next backward jump or call, if checkpoints are enabled. Can be called from any thread.
+     */
+    public void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    /**
+     * Use this memory for the memory operators of all following runs, instead of new heap memory for every run.
+     * Pass null to go back to the default.
+     */
+    public void setMemory(Memory memory) {
+        this.memory = memory;
+        this.externalMemory = memory != null;
+    }
+
+    /**
+     * The pool that runs the function calls started with {@code spawn}, the common pool by default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Use these channels for {@code send} and {@code recv} of all following runs, so that programs running in other
+     * interpreters can be talked to. Pass null to give every run its own channels again.
+     */
+    public void setChannels(Channels channels) {
+        this.channels = channels;
+        this.externalChannels = channels != null;
+    }
+
+    /**
+     * Read {@code in} from this stream instead of stdin, pass null to go back to stdin
+     */
+    public void setInput(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Write {@code out} and {@code nout} to this stream instead of stdout, pass null to go back to stdout
+     */
+    public void setOutput(PrintStream output) {
+        this.output = output;
+        if (asyncWriter != null && !asyncWriter.isFor(output())) {
+            closeAsyncWriter();
+        }
+    }
+
+    /**
+     * Write the output of all following runs on a background thread, so the program does not wait for a slow stdout.
+     * The output is completely written when the run returns. Spawned calls write their output directly. The background
+     * thread is kept for the next run until the output changes.
+     */
+    public void setAsyncOutput(boolean asyncOutput) {
+        this.asyncOutput = asyncOutput;
+        if (!asyncOutput) {
+            closeAsyncWriter();
+        }
+    }
+
+    private void closeAsyncWriter() {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+        }
+    }
+
+    /**
+     * How the operand stacks of the frames of all following runs grow, shrink and how deep they can get. Pushing onto a
+     * full stack stops the program.
+     */
+    public void setStackPolicy(StackPolicy stackPolicy) {
+        this.stackPolicy = stackPolicy;
+    }
+
+    private StackFrame newFrame() {
+        return new StackFrame(stackPolicy.createStack());
+    }
+
+    /**
+     * The engine that executes all following runs, {@link ExecutionEngine#TOKEN_SWITCH} by default
+     */
+    public void setEngine(ExecutionEngine engine) {
+        this.engine = engine;
+        closure = null;
+    }
+
+    /**
+     * Records all following runs into the profile. If it already contains runs of the same program, the closure engine
+     * only optimizes the loops that were hot in them. Null stops recording.
+     */
+    public void setProfileData(ExecutionProfile profileData) {
+        this.profileData = profileData;
+        closure = null;
+    }
+
+    /**
+     * Records all following runs into the trace, or replays them from it if it was opened with
+     * {@link ExecutionTrace#open(java.nio.file.Path)}. Null stops tracing.
+     */
+    public void setTrace(ExecutionTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Makes a Java function callable from all following runs like a function defined with {@code function}. Functions
+     * defined in the program take precedence over host functions with the same name.
+     *
+     * @param arity the amount of arguments that are popped from the stack
+     */
+    public void addHostFunction(String name, int arity, HostFunction function) {
+        if (arity < 0) {
+            throw new IllegalArgumentException("Arity must not be negative: " + arity);
+        }
+        hostFunctions.put(name, new HostFunctionData(name, arity, function));
+        if (program != null) {
+            resolveHostFunctions();
+        }
+    }
+
+    /**
+     * Makes a method handle of the type {@code (int, ...)int} callable, the arity is its parameter count
+     *
+     * @see #addHostFunction(String, int, HostFunction)
+     */
+    public void addHostFunction(String name, MethodHandle handle) {
+        MethodType type = handle.type();
+        if (type.returnType() != int.class || type.parameterList().stream().anyMatch(p -> p != int.class)) {
+            throw new IllegalArgumentException("Host function '" + name + "' must only take and return int, but is " + type);
+        }
+        int arity = type.parameterCount();
+        MethodHandle spreader = handle.asSpreader(int[].class, arity);
+        addHostFunction(name, arity, args -> {
+            try {
+                return (int) spreader.invokeExact(args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public void removeHostFunction(String name) {
+        hostFunctions.remove(name);
+        if (program != null) {
+            resolveHostFunctions();
+        }
+    }
+
+    /**
+     * Evaluate calls to pure functions whose arguments do not depend on each other in parallel, like the two calls of
+     * {@code @n 1 - fib @n 2 - fib +}. The result is the same as running them one after the other.
+     */
+    public void setParallelCalls(boolean parallelCalls) {
+        this.parallelCalls = parallelCalls;
+        if (!parallelCalls) {
+            parallelSites = null;
+        }
+        closure = null;
+    }
+
+    /**
+     * Adds a listener that receives the events of all following runs
+     */
+    public void addListener(InterpreterListener listener) {
+        listenerList.add(listener);
+        updateListener();
+    }
+
+    public void removeListener(InterpreterListener listener) {
+        listenerList.remove(listener);
+        updateListener();
+    }
+
+    private void updateListener() {
+        if (listenerList.isEmpty()) {
+            listener = null;
+        } else if (listenerList.size() == 1) {
+            listener = listenerList.get(0);
+        } else {
+            listener = new ListenerChain(listenerList);
+        }
+    }
+
+    private void runWithListener() {
+        InterpreterListener listener = this.listener;
+        listener.runStarted(this, tokens);
+        try {
+            if (listener.tracesInstructions()) {
+                while (hasNext()) {
+                    instructionCount++;
+                    listener.instruction(position);
+                    executeNext();
+                }
+            } else if (engine == ExecutionEngine.CLOSURE_TREE) {
+                runNodes();
+            } else {
+                while (hasNext()) {
+                    instructionCount++;
+                    executeNext();
+                }
+            }
+        } finally {
+            flushOutput();
+            listener.runFinished(this);
+        }
+    }
+
+    ///// statistics, these may be read from other threads while the program is running
+
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Counts a goto for the profile data, if there is one
+     *
+     * @param position the position of the goto token
+     */
+    void recordBranch(int position, boolean jumped) {
+        if (profileData != null) {
+            profileData.branch(position, jumped);
+        }
+        if (trace != null && jumped) {
+            trace(ExecutionTrace.JUMP, position);
+        }
+    }
+
+    /**
+     * For instructions that the closure engine executes without going through {@link #runNodes()}
+     */
+    void countInstructions(long count) {
+        instructionCount += count;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    public int getMaxFrameDepth() {
+        return maxFrameDepth;
+    }
+
+    public long getBytesOutput() {
+        return bytesOutput;
+    }
+
+    /**
+     * @return the capacity of the stack of the current stack frame
+     */
+    public int getStackCapacity() {
+        Stack<StackFrame> frames = this.frames;
+        if (frames == null || frames.isEmpty()) {
+            return 0;
+        }
+        return frames.peek().getStack().capacity();
+    }
+
+    IntStack stack() {
         return frames.peek().getStack();
     }
 
-    private Map<String, Integer> variables() {
+    private Memory memory() {
+        if (memory == null) {
+            memory = Memory.heap();
+        }
+        return memory;
+    }
+
+    Map<String, Integer> variables() {
         return frames.peek().getVariables();
     }
 
@@ -51,25 +625,21 @@ public class Interpreter {
         }
     }
 
-    private void firstPass() {
-        while (hasNext()) {
-            TokenType type = advance().getType();
-            if (type == COLUMN) {
-                labels.put(expect(IDENTIFIER).getStringValue(), position);
-            } else if (type == FUNCTION) {
-                FunctionData fn = functionHeader();
-                functions.put(fn.name, fn);
-            }
-        }
+    private void functionHeader() {
+        consume(); // function
+        expect(IDENTIFIER);
+        expect(CHARACTER);
     }
 
-    private FunctionData functionHeader() {
-        String name = expect(IDENTIFIER).getStringValue();
-        int paramCount = expect(CHARACTER).getIntValue();
-        return new FunctionData(position, paramCount, name);
+    void executeNext() {
+        try {
+            executeInstruction();
+        } catch (StackLimitException e) {
+            throw runException(e.getMessage());
+        }
     }
 
-    private void executeNext() {
+    private void executeInstruction() {
         switch (peek().getType()) {
             // values
             case CHARACTER -> number();
@@ -96,12 +666,35 @@ public class Interpreter {
             case NOUT -> nout();
             case IN -> in();
             case STRING -> string();
+            // memory
+            case ALLOC -> memoryAlloc();
+            case LOAD -> memoryLoad();
+            case STORE -> memoryStore();
+            case COPY -> memoryCopy();
+            case FILL -> memoryFill();
+            // maps
+            case NEWMAP -> newMap();
+            case PUT -> mapPut();
+            case GET -> mapGet();
+            case CONTAINS -> mapContains();
+            case REMOVE -> mapRemove();
+            case SIZE -> mapSize();
             // control flow
             case COLUMN -> ignoreLabel();
             case GOTO -> condGoto();
             case FUNCTION -> functionHeader();
             case IDENTIFIER -> callFunction();
             case RETURN -> returnFn();
+            // parallelism
+            case SPAWN -> spawn();
+            case JOIN -> join();
+            // channels
+            case SEND -> send();
+            case RECV -> receive();
+            // modules
+            case IMPORT -> importLibrary();
+            // linked library functions follow the end of the program
+            case EOF -> position = tokens.size() - 1;
         }
     }
 
@@ -218,18 +811,28 @@ public class Interpreter {
         if (stack().isEmpty()) {
             throw runException("Cannot pop empty stack");
         }
-        System.out.print((char) stack().pop());
+        char c = (char) stack().pop();
+        if (asyncWriter != null) {
+            asyncWriter.print(c);
+        } else {
+            output().print(c);
+        }
+        written(1);
     }
 
     private void nout() {
         consume();
-        System.out.print(stack().pop());
+        String number = String.valueOf(stack().pop());
+        print(number);
+        written(number.length());
     }
 
     private void in() {
         consume();
+        // a prompt written before reading has to be visible
+        flushOutput();
         try {
-            stack().push(System.in.read());
+            stack().push(trace == null ? input().read() : tracedInput());
         } catch (IOException e) {
             throw runException("[VM] - Error reading input");
         }
@@ -238,7 +841,175 @@ public class Interpreter {
     private void string() {
         String s = advance().getStringValue();
         expect(OUT, "String can only be used together with out");
-        System.out.print(s);
+        print(s);
+        written(s.length());
+    }
+
+    private void print(String s) {
+        if (asyncWriter != null) {
+            asyncWriter.print(s);
+        } else {
+            output().print(s);
+        }
+    }
+
+    private PrintStream output() {
+        return output == null ? System.out : output;
+    }
+
+    private int tracedInput() throws IOException {
+        try {
+            return trace.input(input());
+        } catch (ReplayException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    /**
+     * Records an event in the trace, a diverged replay is reported at the current position
+     */
+    private void trace(int type, int value) {
+        try {
+            trace.event(type, value);
+        } catch (ReplayException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    private InputStream input() {
+        return input == null ? System.in : input;
+    }
+
+    private void written(int bytes) {
+        bytesOutput += bytes;
+        unflushedBytes += bytes;
+    }
+
+    private void flushOutput() {
+        if (unflushedBytes == 0) {
+            return;
+        }
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        } else {
+            output().flush();
+        }
+        if (listener != null) {
+            listener.outputFlushed(unflushedBytes);
+        }
+        unflushedBytes = 0;
+    }
+
+    ///// memory
+
+    private void memoryAlloc() {
+        consume();
+        int count = stack().pop();
+        try {
+            stack().push(memory().alloc(count));
+        } catch (IllegalArgumentException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    private void memoryLoad() {
+        consume();
+        int address = stack().pop();
+        try {
+            stack().push(memory().load(address));
+        } catch (IndexOutOfBoundsException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    private void memoryStore() {
+        consume();
+        int address = stack().pop();
+        int value = stack().pop();
+        try {
+            memory().store(address, value);
+        } catch (IndexOutOfBoundsException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    private void memoryCopy() {
+        consume();
+        int count = stack().pop();
+        int destination = stack().pop();
+        int source = stack().pop();
+        try {
+            memory().copy(source, destination, count);
+        } catch (IndexOutOfBoundsException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    private void memoryFill() {
+        consume();
+        int count = stack().pop();
+        int address = stack().pop();
+        int value = stack().pop();
+        try {
+            memory().fill(address, count, value);
+        } catch (IndexOutOfBoundsException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
+    ///// maps
+
+    private void newMap() {
+        consume();
+        int handle;
+        // the list is its own lock when it is shared
+        synchronized (maps) {
+            maps.add(new IntIntMap());
+            handle = maps.size() - 1;
+        }
+        stack().push(handle);
+    }
+
+    private void mapPut() {
+        consume();
+        int value = stack().pop();
+        int key = stack().pop();
+        map(stack().pop()).put(key, value);
+    }
+
+    private void mapGet() {
+        consume();
+        int key = stack().pop();
+        IntIntMap map = map(stack().pop());
+        try {
+            stack().push(map.get(key));
+        } catch (NoSuchElementException e) {
+            throw runException("Key " + key + " not found in map");
+        }
+    }
+
+    private void mapContains() {
+        consume();
+        int key = stack().pop();
+        stack().push(map(stack().pop()).contains(key) ? 1 : 0);
+    }
+
+    private void mapRemove() {
+        consume();
+        int key = stack().pop();
+        map(stack().pop()).remove(key);
+    }
+
+    private void mapSize() {
+        consume();
+        stack().push(map(stack().pop()).size());
+    }
+
+    private IntIntMap map(int handle) {
+        if (handle < 0 || handle >= maps.size()) {
+            throw runException("Map " + handle + " does not exist");
+        }
+        return maps.get(handle);
     }
 
     ///// control flow
@@ -251,18 +1022,85 @@ public class Interpreter {
     private void condGoto() {
         consume();
         String label = expect(IDENTIFIER).getStringValue();
-        if (stack().peek() != 0) {
-            Integer index = labels.get(label);
+        boolean jumped = stack().peek() != 0;
+        recordBranch(position - 2, jumped);
+        if (jumped) {
+            Integer index = program.label(label);
             if (index == null) {
                 throw runException("Label '" + label + "' not found");
             }
+            if (limited && index < position) {
+                checkLimits();
+            }
             position = index;
         }
     }
 
+    /**
+     * Called at every backward jump and call, every endless program has to pass one of them
+     */
+    void checkLimits() {
+        long total = instructionCount;
+        if (sharedInstructionCount != null) {
+            total = sharedInstructionCount.addAndGet(instructionCount - sharedInstructions);
+            sharedInstructions = instructionCount;
+        }
+        if (total > instructionLimit) {
+            throw runException("Instruction limit of " + instructionLimit + " reached");
+        }
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            throw runException("Execution was cancelled");
+        }
+        if ((timeoutNanos != 0 || checkpointInterval != 0) && --checksUntilClock == 0) {
+            checksUntilClock = CLOCK_INTERVAL;
+            long now = System.nanoTime();
+            if (timeoutNanos != 0 && now - deadline > 0) {
+                throw runException("Timeout of " + Duration.ofNanos(timeoutNanos).toMillis() + "ms reached");
+            }
+            if (checkpointInterval != 0 && now - nextCheckpoint > 0) {
+                checkpointRequested = true;
+            }
+        }
+        if (checkpointRequested && checkpointHandler != null) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Passes the state to the checkpoint handler, resuming from it executes the goto or call that is running now again.
+     * Spawned calls and their handles can't be saved, so runs that spawned calls don't take checkpoints.
+     */
+    private void checkpoint() {
+        if (!spawned.isEmpty()) {
+            return;
+        }
+        checkpointRequested = false;
+        nextCheckpoint = System.nanoTime() + checkpointInterval;
+        // a goto is 2 tokens, a call 1
+        int at = position >= 2 && tokens.get(position - 2).getType() == GOTO ? position - 2 : position - 1;
+        // the goto or call was already counted
+        checkpointHandler.accept(Checkpoint.capture(program, instructionCount - 1, at, frames, memory, maps));
+    }
+
     private void callFunction() {
+        if (hostSites != null) {
+            HostFunctionData host = hostSites[position];
+            if (host != null) {
+                consume();
+                callHost(host);
+                return;
+            }
+        }
+        if (parallelSites != null) {
+            ParallelCalls.Site site = parallelSites.site(position);
+            if (site != null && parallelDepth < MAX_PARALLEL_DEPTH
+                    && (ForkJoinTask.getPool() != pool || ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS_TASKS)) {
+                parallelCall(site);
+                return;
+            }
+        }
         String name = advance().getStringValue();
-        FunctionData p = functions.get(name);
+        FunctionData p = program.function(name);
         if (p != null) {
             call(p);
         } else {
@@ -270,10 +1108,70 @@ public class Interpreter {
         }
     }
 
-    private void call(FunctionData fn) {
+    private void callHost(HostFunctionData host) {
+        if (limited) {
+            checkLimits();
+        }
+        callCount++;
+        if (listener != null) {
+            listener.functionEntered(host.name);
+        }
+        int[] args = popArgs(host.arity);
+        int result;
+        try {
+            result = host.function.call(args);
+        } catch (RunException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw runException("Host function '" + host.name + "' failed: " + e);
+        }
+        stack().push(result);
+        if (listener != null) {
+            listener.functionReturned();
+        }
+    }
+
+    /**
+     * Looks up the host function of every call once, calls of functions defined in the program are left out
+     */
+    private void resolveHostFunctions() {
+        if (hostFunctions.isEmpty()) {
+            hostSites = null;
+            closure = null;
+            return;
+        }
+        HostFunctionData[] sites = new HostFunctionData[tokens.size()];
+        Map<String, FunctionData> functions = program.functions();
+        int position = 0;
+        while (position < tokens.size() - 1) {
+            Token token = tokens.get(position);
+            if (token.getType() == IDENTIFIER && !functions.containsKey(token.getStringValue())) {
+                sites[position] = hostFunctions.get(token.getStringValue());
+            }
+            position += program.instructionLength(position);
+        }
+        hostSites = sites;
+        closure = null;
+    }
+
+    void call(FunctionData fn) {
         if (frames.size() > STACK_LIMIT) {
             throw runException("Stackoverflow, limit of " + STACK_LIMIT + " stack frames reached.");
         }
+        if (limited) {
+            checkLimits();
+        }
+
+        callCount++;
+        if (profileData != null) {
+            profileData.call(fn.index);
+        }
+        if (trace != null) {
+            trace(ExecutionTrace.CALL, fn.index);
+        }
+        if (listener != null) {
+            listener.functionEntered(fn.name);
+        }
 
         frames.peek().setPosition(position);
         position = fn.index;
@@ -281,10 +1179,17 @@ public class Interpreter {
         for (int i = 0; i < fn.paramCount; i++) {
             temp.push(stack().pop());
         }
-        frames.push(new StackFrame());
+        frames.push(newFrame());
         for (int i = 0; i < fn.paramCount; i++) {
             stack().push(temp.pop());
         }
+
+        if (frames.size() > maxFrameDepth) {
+            maxFrameDepth = frames.size();
+            if (listener != null) {
+                listener.frameDepthReached(maxFrameDepth);
+            }
+        }
     }
 
     private void returnFn() {
@@ -296,10 +1201,240 @@ public class Interpreter {
         if (frames.isEmpty()) {
             throw runException("Tried to return outside of function, probably forgot to skip a function");
         }
+        if (listener != null) {
+            listener.functionReturned();
+        }
+        if (trace != null) {
+            trace(ExecutionTrace.RETURN, position - 1);
+        }
         stack().push(returnValue.getAsInt());
         position = frames.peek().getPosition();
     }
 
+    ///// modules
+
+    private void importLibrary() {
+        consume();
+        String name = expect(STRING).getStringValue();
+        throw runException("Library '" + name + "' is not linked");
+    }
+
+    ///// parallelism
+
+    private void spawn() {
+        consume();
+        String name = expect(IDENTIFIER).getStringValue();
+        FunctionData fn = program.function(name);
+        if (fn == null) {
+            throw runException("Function '" + name + "' not found");
+        }
+        SpawnedCall call = new SpawnedCall(fork(), fn, popArgs(fn));
+        submit(call);
+        spawned.add(call);
+        stack().push(spawned.size() - 1);
+    }
+
+    private void join() {
+        consume();
+        int handle = stack().pop();
+        if (handle < 0 || handle >= spawned.size()) {
+            throw runException("Spawned call " + handle + " does not exist");
+        }
+        SpawnedCall call = spawned.get(handle);
+        int result = call.join();
+        if (!call.joined) {
+            call.joined = true;
+            merge(call.interpreter);
+        }
+        stack().push(result);
+    }
+
+    /**
+     * Runs the first call of the site on the pool, then the code up to the second call and the second call itself on
+     * this thread
+     */
+    private void parallelCall(ParallelCalls.Site site) {
+        consume();
+        Interpreter firstInterpreter = fork();
+        firstInterpreter.parallelDepth = parallelDepth + 1;
+        SpawnedCall first = new SpawnedCall(firstInterpreter, site.first, popArgs(site.first));
+        submit(first);
+        // placeholder for the result of the first call, the code up to the second call never touches it
+        int resultIndex = stack().size();
+        stack().push(0);
+
+        Interpreter secondInterpreter = fork();
+        secondInterpreter.parallelDepth = parallelDepth + 1;
+        int second;
+        try {
+            while (position < site.secondPosition) {
+                instructionCount++;
+                executeNext();
+            }
+            // the second call token
+            instructionCount++;
+            consume();
+            second = secondInterpreter.invoke(site.second, popArgs(site.second));
+        } catch (RuntimeException e) {
+            // an error of the first call would have happened earlier
+            first.join();
+            throw e;
+        }
+
+        stack().set(resultIndex, first.join());
+        stack().push(second);
+        merge(first.interpreter);
+        merge(secondInterpreter);
+    }
+
+    private int[] popArgs(FunctionData fn) {
+        return popArgs(fn.paramCount);
+    }
+
+    private int[] popArgs(int count) {
+        int[] args = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            args[i] = stack().pop();
+        }
+        return args;
+    }
+
+    private void submit(SpawnedCall call) {
+        if (ForkJoinTask.getPool() == pool) {
+            call.fork();
+        } else {
+            pool.execute(call);
+        }
+    }
+
+    private void merge(Interpreter child) {
+        instructionCount += child.instructionCount;
+        sharedInstructions += child.sharedInstructions;
+        callCount += child.callCount;
+        bytesOutput += child.bytesOutput;
+    }
+
+    /**
+     * Creates an interpreter for a spawned call, that shares the program, memory, maps and limits with this one
+     */
+    private Interpreter fork() {
+        Interpreter child = new Interpreter();
+        child.program = program;
+        child.tokens = tokens;
+        child.memory = memory();
+        child.memory.share();
+        child.externalMemory = true;
+        if (!sharedMaps) {
+            maps = Collections.synchronizedList(maps);
+            sharedMaps = true;
+        }
+        child.maps = maps;
+        child.sharedMaps = true;
+        child.spawned = new ArrayList<>();
+        child.pool = pool;
+        child.parallelCalls = parallelCalls;
+        child.parallelSites = parallelSites;
+        child.parallelDepth = parallelDepth;
+        if (channels == null) {
+            channels = new Channels();
+        }
+        child.channels = channels;
+        child.externalChannels = true;
+        child.input = input;
+        child.stackPolicy = stackPolicy;
+        child.engine = engine;
+        child.closure = closure;
+        child.hostFunctions.putAll(hostFunctions);
+        child.hostSites = hostSites;
+        child.output = output;
+        child.instructionLimit = instructionLimit;
+        if (instructionLimit != Long.MAX_VALUE) {
+            if (sharedInstructionCount == null) {
+                sharedInstructionCount = new AtomicLong(instructionCount);
+                sharedInstructions = instructionCount;
+            }
+            child.sharedInstructionCount = sharedInstructionCount;
+        }
+        child.timeoutNanos = timeoutNanos;
+        child.cancellationToken = cancellationToken;
+        child.limited = limited;
+        child.deadline = deadline;
+        child.checksUntilClock = CLOCK_INTERVAL;
+        child.maxFrameDepth = 1;
+        return child;
+    }
+
+    /**
+     * Runs a single function call in a fresh frame stack
+     */
+    private int invoke(FunctionData fn, int[] args) {
+        frames = new Stack<>();
+        frames.push(newFrame());
+        for (int arg : args) {
+            stack().push(arg);
+        }
+        // returning from the function continues at EOF, which ends the loop
+        position = tokens.size() - 1;
+        call(fn);
+        loop();
+        return rest();
+    }
+
+    /**
+     * A function call running on the pool
+     */
+    private static class SpawnedCall extends RecursiveTask<Integer> {
+        private final Interpreter interpreter;
+        private final FunctionData fn;
+        private final int[] args;
+        private boolean joined;
+
+        SpawnedCall(Interpreter interpreter, FunctionData fn, int[] args) {
+            this.interpreter = interpreter;
+            this.fn = fn;
+            this.args = args;
+        }
+
+        @Override
+        protected Integer compute() {
+            return interpreter.invoke(fn, args);
+        }
+    }
+
+    ///// channels
+
+    private void send() {
+        consume();
+        IntChannel channel = channel(stack().pop());
+        int value = stack().pop();
+        try {
+            channel.send(value, cancellationToken);
+        } catch (CancellationException e) {
+            throw runException("Execution was cancelled");
+        }
+    }
+
+    private void receive() {
+        consume();
+        IntChannel channel = channel(stack().pop());
+        try {
+            stack().push(channel.receive(cancellationToken));
+        } catch (CancellationException e) {
+            throw runException("Execution was cancelled");
+        }
+    }
+
+    private IntChannel channel(int id) {
+        if (channels == null) {
+            channels = new Channels();
+        }
+        try {
+            return channels.get(id);
+        } catch (IllegalArgumentException e) {
+            throw runException(e.getMessage());
+        }
+    }
+
     ///// parsing helper methods
 
     private Token expect(TokenType type) {
@@ -315,17 +1450,17 @@ public class Interpreter {
     }
 
     private Token advance() {
-        if (position == program.size()) {
+        if (position == tokens.size()) {
             return new Token(EOF);
         }
-        return program.get(position++);
+        return tokens.get(position++);
     }
 
     private Token peek() {
-        if (position == program.size()) {
+        if (position == tokens.size()) {
             return new Token(EOF);
         }
-        return program.get(position);
+        return tokens.get(position);
     }
 
     private void consume() {
@@ -333,11 +1468,11 @@ public class Interpreter {
     }
 
     private boolean hasNext() {
-        return position < program.size() - 1; // last token is EOF
+        return position < tokens.size() - 1; // last token is EOF
     }
 
-    private RunException runException(String message) {
-        Token last = program.get(position - 1);
+    RunException runException(String message) {
+        Token last = tokens.get(position - 1);
         int length;
         if (peek().getLineNumber() == last.getLineNumber()) {
             length = peek().getLineOffset() - last.getLineOffset();
@@ -345,22 +1480,21 @@ public class Interpreter {
             // length cannot be known, make it -1, the error message writer with access to the source code will figure it out
             length = -1;
         }
-        return new RunException(message, last.getLineNumber(), last.getLineOffset(), length);
+        return new RunException(message, last.getLineNumber(), last.getLineOffset(), length, last.getLibrary());
     }
 
-
     /**
-     * The values for a function
+     * A registered host function
      */
-    static class FunctionData {
+    private static class HostFunctionData {
         private final String name;
-        public int index;
-        public int paramCount;
+        private final int arity;
+        private final HostFunction function;
 
-        public FunctionData(int i, int paramCount, String name) {
-            this.index = i;
-            this.paramCount = paramCount;
+        HostFunctionData(String name, int arity, HostFunction function) {
             this.name = name;
+            this.arity = arity;
+            this.function = function;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.util.List;
+
+/**
+ * Receives events from an {@link Interpreter}, all methods are called on the thread that runs the program
+ * <p>
+ * Instructions are only reported to listeners that ask for them with {@link #tracesInstructions()}, the interpreter
+ * uses a loop without any per instruction overhead otherwise.
+ */
+public interface InterpreterListener {
+
+    default void runStarted(Interpreter interpreter, List<Token> program) {
+    }
+
+    /**
+     * Called after the last instruction, even if the run failed
+     */
+    default void runFinished(Interpreter interpreter) {
+    }
+
+    default boolean tracesInstructions() {
+        return false;
+    }
+
+    /**
+     * @param position the position of the token that is about to be executed
+     */
+    default void instruction(int position) {
+    }
+
+    default void functionEntered(String name) {
+    }
+
+    default void functionReturned() {
+    }
+
+    /**
+     * Called whenever the number of stack frames is higher than ever before in this run
+     */
+    default void frameDepthReached(int depth) {
+    }
+
+    /**
+     * @param bytes the bytes written since the last flush
+     */
+    default void outputFlushed(long bytes) {
+    }
+}
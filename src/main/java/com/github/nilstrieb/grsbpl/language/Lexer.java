@@ -1,9 +1,8 @@
 package com.github.nilstrieb.grsbpl.language;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import static com.github.nilstrieb.grsbpl.language.TokenType.*;
 
@@ -12,7 +11,12 @@ import static com.github.nilstrieb.grsbpl.language.TokenType.*;
  * Makes everything a lot easier
  */
 public class Lexer {
-    private static final Map<String, TokenType> KEYWORDS = new HashMap<>();
+    // character classes of ASCII, other characters are classified by java.lang.Character
+    private static final byte ALPHA_NUMERIC = 1;
+    private static final byte DIGIT = 2;
+    private static final byte[] CLASSES = new byte[128];
+    // the value of a digit in radix 36, -1 for other characters
+    private static final byte[] DIGIT_VALUES = new byte[128];
 
     private char[] program;
     private List<Token> tokens;
@@ -22,29 +26,35 @@ public class Lexer {
     private int offsetLock;
 
     static {
-        KEYWORDS.put("out", OUT);
-        KEYWORDS.put("nout", NOUT);
-        KEYWORDS.put("in", IN);
-        KEYWORDS.put("goto", GOTO);
-        KEYWORDS.put("not", NOT);
-        KEYWORDS.put("swap", SWAP);
-        KEYWORDS.put("bnot", BNOT);
-        KEYWORDS.put("and", AND);
-        KEYWORDS.put("or", OR);
-        KEYWORDS.put("xor", XOR);
-        KEYWORDS.put("dup", DUP);
-        KEYWORDS.put("pop", POP);
-        KEYWORDS.put("function", FUNCTION);
-        KEYWORDS.put("return", RETURN);
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = ALPHA_NUMERIC | DIGIT;
+            DIGIT_VALUES[c] = (byte) (c - '0');
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = ALPHA_NUMERIC;
+            CLASSES[Character.toUpperCase(c)] = ALPHA_NUMERIC;
+            DIGIT_VALUES[c] = (byte) (c - 'a' + 10);
+            DIGIT_VALUES[Character.toUpperCase(c)] = (byte) (c - 'a' + 10);
+        }
+        CLASSES['_'] = ALPHA_NUMERIC;
     }
 
-
     public List<Token> lex(char[] chars) {
+        return lex(chars, 1);
+    }
+
+    /**
+     * Lexes a part of a bigger program
+     *
+     * @param lineNumber the line number of the first line of chars in the bigger program
+     */
+    public List<Token> lex(char[] chars, int lineNumber) {
         program = chars;
         position = 0;
         tokens = new ArrayList<>();
         lineOffset = 0;
-        lineNumber = 1;
+        this.lineNumber = lineNumber;
 
         while (hasNext()) {
             try {
@@ -77,7 +87,7 @@ public class Lexer {
             }
             case '#' -> comment();
             default -> {
-                if (Character.isDigit(next)) {
+                if (isDigit(next)) {
                     number();
                 } else {
                     ident();
@@ -136,18 +146,61 @@ public class Lexer {
     }
 
     private void ident() {
-        StringBuilder text = new StringBuilder(String.valueOf(last()));
-        while (isAlphaNumeric(peek())) {
-            text.append(advance());
-        }
-        TokenType type = KEYWORDS.get(text.toString());
+        int start = position - 1;
+        skipAlphaNumeric();
+        int length = position - start;
+        TokenType type = keyword(program, start, length);
         if (type == null) {
-            add(IDENTIFIER, text.toString());
+            add(IDENTIFIER, new String(program, start, length));
         } else {
             add(type);
         }
     }
 
+    /**
+     * Recognizes keywords by their first character and length, without creating a string
+     *
+     * @return the type of the keyword or null if it is not a keyword
+     */
+    private static TokenType keyword(char[] chars, int start, int length) {
+        return switch (chars[start]) {
+            case 'a' -> is(chars, start, length, "and") ? AND : is(chars, start, length, "alloc") ? ALLOC : null;
+            case 'b' -> is(chars, start, length, "bnot") ? BNOT : null;
+            case 'c' -> is(chars, start, length, "copy") ? COPY : is(chars, start, length, "contains") ? CONTAINS : null;
+            case 'd' -> is(chars, start, length, "dup") ? DUP : null;
+            case 'f' -> is(chars, start, length, "fill") ? FILL : is(chars, start, length, "function") ? FUNCTION : null;
+            case 'g' -> is(chars, start, length, "goto") ? GOTO : is(chars, start, length, "get") ? GET : null;
+            case 'i' -> is(chars, start, length, "in") ? IN : is(chars, start, length, "import") ? IMPORT : null;
+            case 'j' -> is(chars, start, length, "join") ? JOIN : null;
+            case 'l' -> is(chars, start, length, "load") ? LOAD : null;
+            case 'n' -> is(chars, start, length, "not") ? NOT : is(chars, start, length, "nout") ? NOUT
+                    : is(chars, start, length, "newmap") ? NEWMAP : null;
+            case 'o' -> is(chars, start, length, "out") ? OUT : is(chars, start, length, "or") ? OR : null;
+            case 'p' -> is(chars, start, length, "pop") ? POP : is(chars, start, length, "put") ? PUT : null;
+            case 'r' -> is(chars, start, length, "return") ? RETURN : is(chars, start, length, "recv") ? RECV
+                    : is(chars, start, length, "remove") ? REMOVE : null;
+            case 's' -> switch (length) {
+                case 4 -> is(chars, start, length, "swap") ? SWAP : is(chars, start, length, "size") ? SIZE
+                        : is(chars, start, length, "send") ? SEND : null;
+                case 5 -> is(chars, start, length, "store") ? STORE : is(chars, start, length, "spawn") ? SPAWN : null;
+                default -> null;
+            };
+            case 'x' -> is(chars, start, length, "xor") ? XOR : null;
+            default -> null;
+        };
+    }
+
+    private static boolean is(char[] chars, int start, int length, String keyword) {
+        if (length != keyword.length()) {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            if (chars[start + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     private void number() {
         int radix = 10;
@@ -166,12 +219,35 @@ public class Lexer {
                 radix = 8;
             }
         }
-        StringBuilder number = new StringBuilder(String.valueOf(last()));
+        int start = position - 1;
+        skipAlphaNumeric();
 
-        while (isAlphaNumeric(peek())) {
-            char c = advance();
-            if (c != '_') {
-                number.append(c);
+        // accumulate the value in place, anything unusual is left to Integer.parseInt to get the same result or error
+        long value = 0;
+        for (int i = start; i < position; i++) {
+            char c = program[i];
+            if (c == '_' && i > start) {
+                continue;
+            }
+            int digit = c < 128 ? DIGIT_VALUES[c] : -1;
+            if (digit < 0 || digit >= radix) {
+                parseNumber(start, radix);
+                return;
+            }
+            value = value * radix + digit;
+            if (value > Integer.MAX_VALUE) {
+                parseNumber(start, radix);
+                return;
+            }
+        }
+        add(CHARACTER, (int) value);
+    }
+
+    private void parseNumber(int start, int radix) {
+        StringBuilder number = new StringBuilder(String.valueOf(program[start]));
+        for (int i = start + 1; i < position; i++) {
+            if (program[i] != '_') {
+                number.append(program[i]);
             }
         }
         try {
@@ -182,8 +258,29 @@ public class Lexer {
         }
     }
 
-    private boolean isAlphaNumeric(char c) {
-        return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_';
+    /**
+     * Skips the rest of an identifier or number, which can't contain a line break
+     */
+    private void skipAlphaNumeric() {
+        int start = position;
+        while (position < program.length && isAlphaNumeric(program[position])) {
+            position++;
+        }
+        lineOffset += position - start;
+    }
+
+    private static boolean isAlphaNumeric(char c) {
+        if (c < 128) {
+            return (CLASSES[c] & ALPHA_NUMERIC) != 0;
+        }
+        return Character.isAlphabetic(c) || Character.isDigit(c);
+    }
+
+    private static boolean isDigit(char c) {
+        if (c < 128) {
+            return (CLASSES[c] & DIGIT) != 0;
+        }
+        return Character.isDigit(c);
     }
 
     private boolean hasNext() {
@@ -0,0 +1,257 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import com.github.nilstrieb.grsbpl.language.Program.FunctionData;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+import static com.github.nilstrieb.grsbpl.language.TokenType.*;
+
+/**
+ * Links the libraries that a program imports with {@code import "<name>"} into it
+ * <p>
+ * A library is a program that only contains functions, optionally after its own imports. It can be compiled once and
+ * stored with {@link Program#write(java.io.DataOutput)}, so it is not lexed again for every program that uses it. Only
+ * the library functions that the program calls, directly or through other library functions, are linked. They are
+ * placed after the end of the program, so they are only executed when called. A call in the program never takes a
+ * function from a library that the program defines itself, and if several libraries define a function, the one
+ * imported first is used.
+ * <p>
+ * A call in the program only finds the functions of the libraries the program imports itself. A call in a library
+ * finds the functions of that library first and then the ones of the libraries it imports, but not the ones of
+ * libraries that only the program or other libraries import. Only if none of them defines the function, it calls the
+ * function of the program. Library functions that the program can't call are linked
+ * as {@code <library>$<function>}, so they don't clash with functions of the same name in other libraries.
+ * <p>
+ * The labels of a library are renamed to {@code <library>$<label>} when it is linked, so they don't clash with the
+ * labels of the program or other libraries. The linked tokens keep the lines of the library and carry its name, see
+ * {@link Token#getLibrary()}, so errors can be shown in the library.
+ */
+public class Linker {
+
+    /**
+     * Loads a library by the name it is imported with
+     */
+    @FunctionalInterface
+    public interface LibraryLoader {
+        /**
+         * @return the library or null if it does not exist
+         */
+        Program load(String name) throws IOException;
+    }
+
+    private final LibraryLoader loader;
+    private final Map<String, Library> libraries = new HashMap<>();
+
+    /**
+     * @param loader loads the libraries that were not added with {@link #addLibrary(String, Program)}
+     */
+    public Linker(LibraryLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @throws RunException if the library contains code outside of its functions
+     */
+    public void addLibrary(String name, Program library) {
+        libraries.put(name, new Library(name, library));
+    }
+
+    /**
+     * @param tokens the tokens from the lexer, ending with {@link TokenType#EOF}
+     * @return the program with all used library functions
+     * @throws IOException  if loading a library failed
+     * @throws RunException if an import is invalid or the library does not exist
+     */
+    public Program link(List<Token> tokens) throws IOException {
+        List<Library> imported = new ArrayList<>();
+        List<Token> linked = new ArrayList<>();
+        int end = tokens.size() - 1; // last token is EOF
+        for (int position = 0; position < end; position++) {
+            Token token = tokens.get(position);
+            if (token.getType() == IMPORT) {
+                addImport(imported, library(tokens, position));
+                position++;
+            } else {
+                linked.add(token);
+            }
+        }
+        // ends the program, the library functions follow
+        linked.add(tokens.get(end));
+        if (imported.isEmpty()) {
+            return Program.compile(linked);
+        }
+
+        Set<String> defined = new HashSet<>();
+        for (int position = 0; position < end; position++) {
+            if (tokens.get(position).getType() == FUNCTION && tokens.get(position + 1).getType() == IDENTIFIER) {
+                defined.add(tokens.get(position + 1).getStringValue());
+            }
+        }
+
+        // the names of the linked functions, and the library functions that still have to be linked
+        Set<String> linkedNames = new HashSet<>(defined);
+        Deque<Map.Entry<Library, String>> pending = new ArrayDeque<>();
+        for (String name : calls(tokens, 0, end)) {
+            Library library = defined.contains(name) ? null : resolve(name, null, imported);
+            if (library != null && linkedNames.add(name)) {
+                pending.add(Map.entry(library, name));
+            }
+        }
+        while (!pending.isEmpty()) {
+            Map.Entry<Library, String> function = pending.poll();
+            Library from = function.getKey();
+            linked.addAll(from.link(from.functions.get(function.getValue()), name -> {
+                Library library = resolve(name, from, imported);
+                if (library == null) {
+                    // a function of the program, or not found when called
+                    return defined.contains(name) ? name : from.name + "$" + name;
+                }
+                String linkedName = !defined.contains(name) && resolve(name, null, imported) == library
+                        ? name : library.name + "$" + name;
+                if (linkedNames.add(linkedName)) {
+                    pending.add(Map.entry(library, name));
+                }
+                return linkedName;
+            }));
+        }
+        linked.add(new Token(EOF));
+        return Program.compile(linked);
+    }
+
+    /**
+     * @param from     the library that calls the function, null for the program
+     * @param imported the libraries the program imports
+     * @return the library whose function is called, or null if no library in scope defines it
+     */
+    private static Library resolve(String name, Library from, List<Library> imported) {
+        if (from != null && from.functions.containsKey(name)) {
+            return from;
+        }
+        for (Library library : from == null ? imported : from.imports) {
+            if (library.functions.containsKey(name)) {
+                return library;
+            }
+        }
+        return null;
+    }
+
+    private Library library(List<Token> tokens, int position) throws IOException {
+        Token name = tokens.get(position + 1);
+        if (name.getType() != STRING) {
+            Token token = tokens.get(position);
+            throw new RunException("Excepted token 'STRING' but found '" + name.getType() + "'",
+                    token.getLineNumber(), token.getLineOffset(), -1);
+        }
+        Library library = libraries.get(name.getStringValue());
+        if (library == null) {
+            Program program = loader.load(name.getStringValue());
+            if (program == null) {
+                Token token = tokens.get(position);
+                throw new RunException("Library '" + name.getStringValue() + "' not found",
+                        token.getLineNumber(), token.getLineOffset(), -1);
+            }
+            library = new Library(name.getStringValue(), program);
+            libraries.put(library.name, library);
+        }
+        if (!library.importsLoaded) {
+            // set first, libraries may import each other
+            library.importsLoaded = true;
+            for (int importPosition : library.importPositions) {
+                library.imports.add(library(library.tokens, importPosition));
+            }
+        }
+        return library;
+    }
+
+    private static void addImport(List<Library> imported, Library library) {
+        if (!imported.contains(library)) {
+            imported.add(library);
+        }
+    }
+
+    /**
+     * @return the names of the functions called by the instructions in the range
+     */
+    private static List<String> calls(List<Token> tokens, int from, int to) {
+        List<String> calls = new ArrayList<>();
+        int position = from;
+        while (position < to) {
+            Token token = tokens.get(position);
+            if (token.getType() == IDENTIFIER) {
+                calls.add(token.getStringValue());
+            } else if (token.getType() == SPAWN && position + 1 < to && tokens.get(position + 1).getType() == IDENTIFIER) {
+                calls.add(tokens.get(position + 1).getStringValue());
+            }
+            position += Program.instructionLength(token.getType());
+        }
+        return calls;
+    }
+
+    private static class Library {
+        private final String name;
+        private final List<Token> tokens;
+        private final Set<String> labels;
+        /**
+         * The range of the tokens of every function, from the function keyword to the next function or the end
+         */
+        private final Map<String, int[]> functions = new HashMap<>();
+        private final List<Library> imports = new ArrayList<>();
+        private final List<Integer> importPositions = new ArrayList<>();
+        private boolean importsLoaded;
+
+        Library(String name, Program program) {
+            this.name = name;
+            this.tokens = program.tokens();
+            this.labels = program.labels().keySet();
+            int end = tokens.size() - 1;
+            int position = 0;
+            while (position < end && tokens.get(position).getType() == IMPORT) {
+                importPositions.add(position);
+                position += 2;
+            }
+            if (position < end && tokens.get(position).getType() != FUNCTION) {
+                Token token = tokens.get(position);
+                throw new RunException("Library '" + name + "' contains code outside of functions",
+                        token.getLineNumber(), token.getLineOffset(), -1);
+            }
+            List<Integer> starts = new ArrayList<>();
+            for (FunctionData fn : program.functions().values()) {
+                starts.add(fn.index - 3);
+            }
+            Collections.sort(starts);
+            for (int i = 0; i < starts.size(); i++) {
+                int start = starts.get(i);
+                int to = i + 1 < starts.size() ? starts.get(i + 1) : end;
+                functions.put(tokens.get(start + 1).getStringValue(), new int[]{start, to});
+            }
+        }
+
+        /**
+         * @param functions the linked name of every function the library calls or defines
+         * @return the tokens of the function tagged with this library, with the labels and functions renamed
+         */
+        List<Token> link(int[] range, UnaryOperator<String> functions) {
+            List<Token> linked = new ArrayList<>(range[1] - range[0]);
+            int position = range[0];
+            while (position < range[1]) {
+                TokenType type = tokens.get(position).getType();
+                int length = Program.instructionLength(type);
+                for (int i = 0; i < length && position + i < range[1]; i++) {
+                    Token token = tokens.get(position + i);
+                    String value = token.getType() == IDENTIFIER ? token.getStringValue() : null;
+                    if (i == 0 && type == IDENTIFIER || i == 1 && (type == FUNCTION || type == SPAWN) && value != null) {
+                        value = functions.apply(value);
+                    } else if (i == 1 && (type == COLUMN || type == GOTO) && labels.contains(value)) {
+                        value = name + "$" + value;
+                    }
+                    linked.add(new Token(token.getType(), value == null ? token.getValue() : value,
+                            token.getLineNumber(), token.getLineOffset(), name));
+                }
+                position += length;
+            }
+            return linked;
+        }
+    }
+}
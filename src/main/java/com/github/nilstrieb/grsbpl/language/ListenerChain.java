@@ -0,0 +1,70 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.util.List;
+
+/**
+ * Forwards all events to multiple listeners, in the order they were added
+ */
+class ListenerChain implements InterpreterListener {
+    private final InterpreterListener[] listeners;
+    private final boolean tracesInstructions;
+
+    ListenerChain(List<InterpreterListener> listeners) {
+        this.listeners = listeners.toArray(new InterpreterListener[0]);
+        this.tracesInstructions = listeners.stream().anyMatch(InterpreterListener::tracesInstructions);
+    }
+
+    @Override
+    public void runStarted(Interpreter interpreter, List<Token> program) {
+        for (InterpreterListener listener : listeners) {
+            listener.runStarted(interpreter, program);
+        }
+    }
+
+    @Override
+    public void runFinished(Interpreter interpreter) {
+        for (InterpreterListener listener : listeners) {
+            listener.runFinished(interpreter);
+        }
+    }
+
+    @Override
+    public boolean tracesInstructions() {
+        return tracesInstructions;
+    }
+
+    @Override
+    public void instruction(int position) {
+        for (InterpreterListener listener : listeners) {
+            listener.instruction(position);
+        }
+    }
+
+    @Override
+    public void functionEntered(String name) {
+        for (InterpreterListener listener : listeners) {
+            listener.functionEntered(name);
+        }
+    }
+
+    @Override
+    public void functionReturned() {
+        for (InterpreterListener listener : listeners) {
+            listener.functionReturned();
+        }
+    }
+
+    @Override
+    public void frameDepthReached(int depth) {
+        for (InterpreterListener listener : listeners) {
+            listener.frameDepthReached(depth);
+        }
+    }
+
+    @Override
+    public void outputFlushed(long bytes) {
+        for (InterpreterListener listener : listeners) {
+            listener.outputFlushed(bytes);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import com.github.nilstrieb.grsbpl.language.ClosureEngine.*;
+
+import java.util.*;
+
+/**
+ * Optimizes the loops of a program compiled by the {@link ClosureEngine}
+ * <p>
+ * Gotos that jump to another goto are threaded to the final target. This works because a goto only peeks at its
+ * condition, so the next goto sees the same non-zero value and jumps as well. Only forward gotos are threaded through,
+ * so the limits are still checked at the same backward jumps.
+ * <p>
+ * Loops made of simple instructions (values, variables, operators and gotos) are compiled into a single {@link Loop}
+ * node. It loads the variables of the loop into local slots once when the loop is entered, runs the body without going
+ * through the node array and writes changed variables back when it leaves the loop. Whenever an instruction would
+ * fail, like loading an unset variable or dividing by zero, the loop node leaves the loop before that instruction and
+ * the normal nodes execute it, so errors and their positions stay the same. The instruction count is kept exact.
+ */
+final class LoopOptimizer {
+
+    private static final int PUSH = 0;
+    private static final int LOAD = 1;
+    private static final int STORE = 2;
+    private static final int ADD = 3;
+    private static final int SUBTRACT = 4;
+    private static final int MULTIPLY = 5;
+    private static final int DIVIDE = 6;
+    private static final int MODULO = 7;
+    private static final int BITWISE_NOT = 8;
+    private static final int AND = 9;
+    private static final int OR = 10;
+    private static final int XOR = 11;
+    private static final int NOT = 12;
+    private static final int DUP = 13;
+    private static final int SWAP = 14;
+    private static final int POP = 15;
+    private static final int SKIP = 16;
+    private static final int GOTO = 17;
+    /**
+     * The nodes without operands, in the order of their codes
+     */
+    private static final List<Class<?>> SIMPLE = List.of(Add.class, Subtract.class, Multiply.class, Divide.class,
+            Modulo.class, BitwiseNot.class, And.class, Or.class, Xor.class, Not.class, Dup.class, Swap.class, Pop.class,
+            Skip.class);
+
+    private LoopOptimizer() {
+    }
+
+    /**
+     * @param profile earlier runs of the program, only loops that were hot in them are compiled. Null to compile all.
+     */
+    static void optimize(Node[] nodes, ExecutionProfile profile) {
+        threadJumps(nodes);
+        compileLoops(nodes, profile);
+    }
+
+    ///// jump threading
+
+    private static void threadJumps(Node[] nodes) {
+        int end = nodes.length - 1; // last token is EOF
+        for (int position = 0; position < end; position++) {
+            if (!(nodes[position] instanceof Goto)) {
+                continue;
+            }
+            Goto jump = (Goto) nodes[position];
+            if (jump.target == -1) {
+                continue;
+            }
+            int target = jump.target;
+            int skipped = 0;
+            List<Integer> skippedGotos = new ArrayList<>();
+            // every step moves forward, so this ends
+            while (target < end) {
+                Node node = nodes[target];
+                if (node instanceof Skip) {
+                    target = node.next;
+                    skipped++;
+                } else if (node instanceof Goto && ((Goto) node).target != -1 && !((Goto) node).backward) {
+                    // an earlier goto may already be threaded itself
+                    Goto skippedGoto = (Goto) node;
+                    skippedGotos.add(target);
+                    for (int threaded : skippedGoto.skippedGotos) {
+                        skippedGotos.add(threaded);
+                    }
+                    skipped += 1 + skippedGoto.skipped;
+                    target = skippedGoto.target;
+                } else {
+                    break;
+                }
+            }
+            if (skipped != 0) {
+                nodes[position] = new Goto(jump.next, target, jump.label, jump.backward, skipped,
+                        skippedGotos.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+    }
+
+    ///// loops
+
+    private static void compileLoops(Node[] nodes, ExecutionProfile profile) {
+        // headers of loops, with the position of their last backward goto
+        SortedMap<Integer, Integer> loops = new TreeMap<>();
+        for (int position = 0; position < nodes.length - 1; position++) {
+            if (nodes[position] instanceof Goto) {
+                Goto jump = (Goto) nodes[position];
+                if (jump.backward && jump.skipped == 0 && (profile == null || profile.isHotLoop(position))) {
+                    loops.merge(jump.target, position, Math::max);
+                }
+            }
+        }
+        // outer loops first, so their bodies are compiled from the original nodes
+        for (Map.Entry<Integer, Integer> loop : loops.entrySet()) {
+            Loop compiled = compileLoop(nodes, loop.getKey(), loop.getValue());
+            if (compiled != null) {
+                nodes[loop.getKey()] = compiled;
+            }
+        }
+    }
+
+    /**
+     * @return the loop node or null if the loop contains instructions that are not supported
+     */
+    private static Loop compileLoop(Node[] nodes, int header, int backEdge) {
+        int length = backEdge - header + 1;
+        int[] code = new int[length];
+        int[] args = new int[length];
+        int[] next = new int[length];
+        int[] skipped = new int[length];
+        int[][] skippedGotos = new int[length][];
+        boolean[] backward = new boolean[length];
+        boolean[] start = new boolean[length];
+        List<String> names = new ArrayList<>();
+        List<Integer> targets = new ArrayList<>();
+
+        int position = header;
+        while (position <= backEdge) {
+            Node node = nodes[position];
+            int i = position - header;
+            start[i] = true;
+            next[i] = node.next;
+            if (node instanceof Push) {
+                code[i] = PUSH;
+                args[i] = ((Push) node).value;
+            } else if (node instanceof Load) {
+                code[i] = LOAD;
+                args[i] = slot(names, ((Load) node).name);
+            } else if (node instanceof Store) {
+                code[i] = STORE;
+                args[i] = slot(names, ((Store) node).name);
+            } else if (node instanceof Goto) {
+                Goto jump = (Goto) node;
+                if (jump.target == -1) {
+                    return null;
+                }
+                code[i] = GOTO;
+                args[i] = jump.target;
+                skipped[i] = jump.skipped;
+                skippedGotos[i] = jump.skippedGotos;
+                backward[i] = jump.backward;
+                targets.add(jump.target);
+            } else {
+                int simple = simpleCode(node);
+                if (simple == -1) {
+                    return null;
+                }
+                code[i] = simple;
+            }
+            position = node.next;
+        }
+        if (!start[length - 1] || code[length - 1] != GOTO) {
+            return null;
+        }
+        for (int target : targets) {
+            if (target >= header && target <= backEdge && !start[target - header]) {
+                return null;
+            }
+        }
+        return new Loop(nodes[header], header, code, args, next, skipped, skippedGotos, backward,
+                names.toArray(new String[0]));
+    }
+
+    private static int slot(List<String> names, String name) {
+        int slot = names.indexOf(name);
+        if (slot == -1) {
+            names.add(name);
+            slot = names.size() - 1;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the code of an instruction without operands or -1 if it is not supported
+     */
+    private static int simpleCode(Node node) {
+        int index = SIMPLE.indexOf(node.getClass());
+        return index == -1 ? -1 : ADD + index;
+    }
+
+    /**
+     * Runs a whole loop, the positions of the body are relative to the header
+     */
+    static final class Loop extends Node {
+        /**
+         * The node at the header, executed when the loop can't even start
+         */
+        private final Node original;
+        private final int header;
+        private final int[] code;
+        private final int[] args;
+        private final int[] nextPositions;
+        private final int[] skipped;
+        private final int[][] skippedGotos;
+        private final boolean[] backward;
+        private final String[] names;
+
+        Loop(Node original, int header, int[] code, int[] args, int[] next, int[] skipped, int[][] skippedGotos,
+             boolean[] backward, String[] names) {
+            super(original.next);
+            this.original = original;
+            this.header = header;
+            this.code = code;
+            this.args = args;
+            this.nextPositions = next;
+            this.skipped = skipped;
+            this.skippedGotos = skippedGotos;
+            this.backward = backward;
+            this.names = names;
+        }
+
+        @Override
+        int execute(Interpreter interpreter) {
+            IntStack stack = interpreter.stack();
+            Map<String, Integer> variables = interpreter.variables();
+            int[] slots = new int[names.length];
+            boolean[] set = new boolean[names.length];
+            boolean[] changed = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                Integer value = variables.get(names[i]);
+                if (value != null) {
+                    slots[i] = value;
+                    set[i] = true;
+                }
+            }
+
+            int end = header + code.length;
+            int position = header;
+            // the instructions executed here, the one of this node was already counted
+            long executed = 0;
+            long counted = 1;
+            try {
+                while (position >= header && position < end) {
+                    int i = position - header;
+                    int arg = args[i];
+                    switch (code[i]) {
+                        case PUSH -> stack.push(arg);
+                        case LOAD -> {
+                            if (!set[arg]) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            stack.push(slots[arg]);
+                        }
+                        case STORE -> {
+                            if (stack.isEmpty()) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            slots[arg] = stack.pop();
+                            set[arg] = true;
+                            changed[arg] = true;
+                        }
+                        case ADD, SUBTRACT, MULTIPLY, AND, OR, XOR -> {
+                            if (stack.size() < 2) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            int b = stack.pop();
+                            int a = stack.pop();
+                            stack.push(switch (code[i]) {
+                                case ADD -> a + b;
+                                case SUBTRACT -> a - b;
+                                case MULTIPLY -> a * b;
+                                case AND -> a & b;
+                                case OR -> a | b;
+                                default -> a ^ b;
+                            });
+                        }
+                        case DIVIDE, MODULO -> {
+                            if (stack.size() < 2 || stack.peek() == 0) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            int b = stack.pop();
+                            int a = stack.pop();
+                            stack.push(code[i] == DIVIDE ? a / b : a % b);
+                        }
+                        case BITWISE_NOT, NOT, DUP, POP -> {
+                            if (stack.isEmpty()) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            switch (code[i]) {
+                                case BITWISE_NOT -> stack.push(~stack.pop());
+                                case NOT -> stack.push(stack.pop() == 0 ? 1 : 0);
+                                case DUP -> stack.push(stack.peek());
+                                default -> stack.pop();
+                            }
+                        }
+                        case SWAP -> {
+                            if (stack.size() < 2) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            stack.swap();
+                        }
+                        case SKIP -> {
+                        }
+                        case GOTO -> {
+                            if (stack.isEmpty()) {
+                                return leave(interpreter, position, executed, counted);
+                            }
+                            executed++;
+                            interpreter.recordBranch(position, stack.peek() != 0);
+                            if (stack.peek() == 0) {
+                                position = nextPositions[i];
+                                continue;
+                            }
+                            if (interpreter.limited && backward[i]) {
+                                interpreter.countInstructions(executed - counted);
+                                counted = executed;
+                                interpreter.position = nextPositions[i];
+                                writeBack(variables, slots, changed);
+                                interpreter.checkLimits();
+                            }
+                            executed += skipped[i];
+                            for (int skippedGoto : skippedGotos[i]) {
+                                interpreter.recordBranch(skippedGoto, true);
+                            }
+                            position = arg;
+                            continue;
+                        }
+                        default -> throw new IllegalStateException("Unknown loop code " + code[i]);
+                    }
+                    executed++;
+                    position = nextPositions[i];
+                }
+            } catch (StackLimitException e) {
+                // the push failed without changing the stack, the normal node reports it
+                return leave(interpreter, position, executed, counted);
+            } finally {
+                writeBack(variables, slots, changed);
+            }
+            interpreter.countInstructions(executed - counted);
+            return position;
+        }
+
+        /**
+         * Leaves the loop before the instruction at the position, which is executed by the normal nodes
+         */
+        private int leave(Interpreter interpreter, int position, long executed, long counted) {
+            if (executed == 0) {
+                return original.execute(interpreter);
+            }
+            interpreter.countInstructions(executed - counted);
+            return position;
+        }
+
+        private void writeBack(Map<String, Integer> variables, int[] slots, boolean[] changed) {
+            for (int i = 0; i < names.length; i++) {
+                if (changed[i]) {
+                    variables.put(names[i], slots[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Addressable memory of integers, used by the {@code alloc}, {@code load}, {@code store}, {@code copy} and {@code fill} operators
+ * <p>
+ * Memory is allocated with a bump allocator and never freed. Addresses are indices of integers, starting at 0.
+ * It can live on the heap, off-heap or in a memory mapped file, in which case the existing contents of the file
+ * are already allocated.
+ * <p>
+ * Once the memory is shared with spawned calls, see {@link #share()}, accesses take a read lock and allocations a write
+ * lock, so an allocation that grows the memory does not lose the stores of other threads. Concurrent writes to the
+ * same address are still not ordered.
+ */
+public class Memory implements Closeable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * A single mapping can not be bigger than 2GB
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / Integer.BYTES;
+
+    private final Kind kind;
+    private final FileChannel channel;
+    private IntBuffer buffer;
+    private MappedByteBuffer mapping;
+    private int size;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean shared;
+
+    private enum Kind {
+        HEAP, OFF_HEAP, MAPPED
+    }
+
+    private Memory(Kind kind, FileChannel channel, int size, int capacity) throws IOException {
+        this.kind = kind;
+        this.channel = channel;
+        this.size = size;
+        this.buffer = allocate(capacity);
+    }
+
+    public static Memory heap() {
+        try {
+            return new Memory(Kind.HEAP, null, 0, INITIAL_CAPACITY);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Memory offHeap() {
+        try {
+            return new Memory(Kind.OFF_HEAP, null, 0, INITIAL_CAPACITY);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Maps the file into memory, the file is created if it does not exist. Its existing contents are the first
+     * allocated integers, stored in little endian byte order.
+     */
+    public static Memory mapped(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long ints = channel.size() / Integer.BYTES;
+        if (ints > MAX_CAPACITY) {
+            channel.close();
+            throw new IOException("File " + file + " is too big to be mapped");
+        }
+        return new Memory(Kind.MAPPED, channel, (int) ints, (int) Math.max(ints, INITIAL_CAPACITY));
+    }
+
+    private IntBuffer allocate(int capacity) throws IOException {
+        return switch (kind) {
+            case HEAP -> IntBuffer.allocate(capacity);
+            case OFF_HEAP -> ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            case MAPPED -> {
+                mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * Integer.BYTES);
+                yield mapping.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        };
+    }
+
+    /**
+     * Makes all following accesses safe for several threads, called before the memory is passed to another thread
+     */
+    void share() {
+        shared = true;
+    }
+
+    /**
+     * @return the locked lock, or null if the memory is not shared
+     */
+    private Lock lock(boolean write) {
+        if (!shared) {
+            return null;
+        }
+        Lock lock = write ? this.lock.writeLock() : this.lock.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlock(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Allocates count new integers, initialized to 0
+     *
+     * @return the address of the first integer
+     * @throws IllegalArgumentException if count is negative or there is not enough memory
+     */
+    public int alloc(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Cannot allocate a negative amount of memory: " + count);
+        }
+        Lock lock = lock(true);
+        try {
+            int address = size;
+            long newSize = (long) size + count;
+            if (newSize > buffer.capacity()) {
+                grow(newSize);
+            }
+            size = (int) newSize;
+            return address;
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private void grow(long minCapacity) {
+        if (minCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Cannot allocate more than " + MAX_CAPACITY + " integers of memory");
+        }
+        int capacity = (int) Math.min(MAX_CAPACITY, Math.max(minCapacity, buffer.capacity() * 2L));
+        try {
+            IntBuffer old = buffer;
+            buffer = allocate(capacity);
+            if (kind != Kind.MAPPED) {
+                old.clear();
+                buffer.put(old);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not grow the memory mapped file: " + e.getMessage());
+        }
+    }
+
+    public int load(int address) {
+        Lock lock = lock(false);
+        try {
+            checkBounds(address, 1);
+            return buffer.get(address);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    public void store(int address, int value) {
+        Lock lock = lock(false);
+        try {
+            checkBounds(address, 1);
+            buffer.put(address, value);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Copies count integers, the ranges may overlap
+     */
+    public void copy(int source, int destination, int count) {
+        Lock lock = lock(false);
+        try {
+            copyLocked(source, destination, count);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private void copyLocked(int source, int destination, int count) {
+        checkBounds(source, count);
+        checkBounds(destination, count);
+        if (count == 0 || source == destination) {
+            return;
+        }
+        if (destination > source && destination < source + count) {
+            // overlapping, copy from the end to not overwrite what is still to be copied
+            for (int i = count - 1; i >= 0; i--) {
+                buffer.put(destination + i, buffer.get(source + i));
+            }
+        } else {
+            IntBuffer from = buffer.duplicate();
+            from.limit(source + count).position(source);
+            IntBuffer to = buffer.duplicate();
+            to.position(destination);
+            to.put(from);
+        }
+    }
+
+    public void fill(int address, int count, int value) {
+        Lock lock = lock(false);
+        try {
+            checkBounds(address, count);
+            for (int i = address; i < address + count; i++) {
+                buffer.put(i, value);
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * @return the number of allocated integers, which is also the address of the next allocation
+     */
+    public int size() {
+        Lock lock = lock(false);
+        try {
+            return size;
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * @return a copy of the allocated integers
+     */
+    int[] toArray() {
+        int[] values = new int[size];
+        buffer.get(0, values);
+        return values;
+    }
+
+    /**
+     * Replaces the allocated integers with the values, as if they had been allocated and stored
+     */
+    void restore(int[] values) {
+        if (values.length > buffer.capacity()) {
+            grow(values.length);
+        }
+        size = values.length;
+        buffer.put(0, values);
+    }
+
+    private void checkBounds(int address, int count) {
+        if (address < 0 || count < 0 || address > size - count) {
+            throw new IndexOutOfBoundsException("Memory access out of bounds: address " + address + ", count " + count +
+                    ", " + size + " integers allocated");
+        }
+    }
+
+    /**
+     * Writes mapped memory back to the file and truncates it to the allocated size
+     */
+    @Override
+    public void close() throws IOException {
+        if (kind == Kind.MAPPED) {
+            mapping.force();
+            mapping = null;
+            buffer = null;
+            channel.truncate((long) size * Integer.BYTES);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.OptionalInt;
+
+/**
+ * An {@link IntStack} that keeps its values in direct memory, so big stacks don't have to be scanned or copied by the
+ * garbage collector. A single stack can hold at most {@value MAX_CAPACITY} values.
+ * <p>
+ * The stack starts on the heap like any other and only moves to direct memory when it grows beyond the
+ * {@linkplain StackPolicy#getOffHeapThreshold() threshold} of its policy, so the many small stacks of calls don't
+ * allocate direct memory that only the garbage collector frees again.
+ */
+class OffHeapIntStack extends IntStack {
+
+    static final int MAX_CAPACITY = Integer.MAX_VALUE / Integer.BYTES;
+
+    // null while the values are on the heap
+    private IntBuffer values;
+    private int pointer = -1;
+    private int shrinkBelow = -1;
+    private final int maxDepth;
+
+    OffHeapIntStack(StackPolicy policy) {
+        super(policy);
+        this.maxDepth = Math.min(policy.getMaxDepth(), MAX_CAPACITY);
+    }
+
+    private static IntBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @Override
+    public void push(int value) {
+        if (values == null) {
+            if (super.size() < super.capacity() || super.capacity() < getPolicy().getOffHeapThreshold()) {
+                super.push(value);
+                return;
+            }
+            moveOffHeap();
+        }
+        if (pointer == values.capacity() - 1) {
+            grow();
+        }
+        values.put(++pointer, value);
+    }
+
+    @Override
+    public int pop() {
+        if (values == null) {
+            return super.pop();
+        }
+        if (pointer == -1) {
+            throw new IndexOutOfBoundsException("Cannot pop below zero");
+        }
+        int value = values.get(pointer--);
+        if (pointer < shrinkBelow) {
+            resize(Math.max(getPolicy().getInitialCapacity(), values.capacity() / 2));
+        }
+        return value;
+    }
+
+    @Override
+    public int peek() {
+        return values == null ? super.peek() : values.get(pointer);
+    }
+
+    @Override
+    public OptionalInt tryPop() {
+        return isEmpty() ? OptionalInt.empty() : OptionalInt.of(pop());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return values == null ? super.isEmpty() : pointer < 0;
+    }
+
+    @Override
+    public int size() {
+        return values == null ? super.size() : pointer + 1;
+    }
+
+    @Override
+    public void set(int index, int value) {
+        if (values == null) {
+            super.set(index, value);
+            return;
+        }
+        if (index < 0 || index > pointer) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+        values.put(index, value);
+    }
+
+    @Override
+    int[] toArray() {
+        if (values == null) {
+            return super.toArray();
+        }
+        int[] array = new int[size()];
+        values.get(0, array);
+        return array;
+    }
+
+    @Override
+    public int capacity() {
+        return values == null ? super.capacity() : values.capacity();
+    }
+
+    private void moveOffHeap() {
+        if (super.capacity() >= maxDepth) {
+            throw new StackLimitException(maxDepth);
+        }
+        int[] heap = super.toArray();
+        values = allocate(Math.min(maxDepth, getPolicy().grow(super.capacity())));
+        values.put(heap);
+        values.clear();
+        pointer = heap.length - 1;
+        shrinkBelow = shrinkThreshold(values.capacity());
+        super.release();
+    }
+
+    private void grow() {
+        if (values.capacity() >= maxDepth) {
+            throw new StackLimitException(maxDepth);
+        }
+        resize(Math.min(maxDepth, getPolicy().grow(values.capacity())));
+    }
+
+    private void resize(int capacity) {
+        IntBuffer old = values;
+        values = allocate(capacity);
+        old.clear().limit(pointer + 1);
+        values.put(old);
+        values.clear();
+        shrinkBelow = shrinkThreshold(capacity);
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import com.github.nilstrieb.grsbpl.language.Program.FunctionData;
+
+import java.util.*;
+
+import static com.github.nilstrieb.grsbpl.language.TokenType.*;
+
+/**
+ * Finds pairs of calls to pure functions that can be evaluated in parallel
+ * <p>
+ * A function is pure if no instruction reachable from its start has side effects (io, strings, writing memory or maps,
+ * spawning, channels) and every function it calls is pure as well. A pair is a call to a pure function, followed by straight code
+ * that only works on values it pushed itself, followed by a call to another pure function that only takes arguments
+ * from those values, like {@code @n 1 - fib @n 2 - fib +}. The second call does not depend on the result of the first,
+ * so both can run at the same time.
+ */
+class ParallelCalls {
+
+    private final Program program;
+    private final Site[] sites;
+
+    private ParallelCalls(Program program) {
+        this.program = program;
+        this.sites = new Site[program.size()];
+    }
+
+    static ParallelCalls analyze(Program program) {
+        ParallelCalls calls = new ParallelCalls(program);
+        calls.findSites(calls.pureFunctions());
+        return calls;
+    }
+
+    /**
+     * @return the pair starting with the call at the position, or null
+     */
+    Site site(int position) {
+        return position < sites.length ? sites[position] : null;
+    }
+
+    boolean isFor(Program program) {
+        return this.program == program && sites.length == program.size();
+    }
+
+    ///// purity
+
+    private Set<String> pureFunctions() {
+        Map<String, Set<String>> callees = new HashMap<>();
+        Set<String> impure = new HashSet<>();
+        for (FunctionData fn : program.functions().values()) {
+            Set<String> called = new HashSet<>();
+            if (hasSideEffects(fn, called)) {
+                impure.add(fn.name);
+            }
+            callees.put(fn.name, called);
+        }
+
+        // calling an impure function is a side effect as well
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Set<String>> entry : callees.entrySet()) {
+                if (!impure.contains(entry.getKey()) && entry.getValue().stream().anyMatch(impure::contains)) {
+                    impure.add(entry.getKey());
+                    changed = true;
+                }
+            }
+        }
+
+        Set<String> pure = new HashSet<>(callees.keySet());
+        pure.removeAll(impure);
+        return pure;
+    }
+
+    private boolean hasSideEffects(FunctionData fn, Set<String> called) {
+        List<Token> tokens = program.tokens();
+        Map<String, Integer> labels = program.labels();
+        BitSet visited = new BitSet(tokens.size());
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(fn.index);
+
+        while (!work.isEmpty()) {
+            int position = work.pop();
+            if (visited.get(position)) {
+                continue;
+            }
+            visited.set(position);
+            if (position >= tokens.size() - 1) {
+                // running off the end of the program ends it
+                return true;
+            }
+
+            Token token = tokens.get(position);
+            switch (token.getType()) {
+                case IN, OUT, NOUT, STRING, ALLOC, STORE, COPY, FILL, NEWMAP, PUT, REMOVE, SPAWN, JOIN, SEND, RECV -> {
+                    return true;
+                }
+                case RETURN -> {
+                }
+                case GOTO -> {
+                    Integer target = labels.get(tokens.get(position + 1).getStringValue());
+                    if (target != null) {
+                        work.push(target);
+                    }
+                    work.push(position + 2);
+                }
+                case IDENTIFIER -> {
+                    String name = token.getStringValue();
+                    if (!program.functions().containsKey(name)) {
+                        return true;
+                    }
+                    called.add(name);
+                    work.push(position + 1);
+                }
+                default -> work.push(position + program.instructionLength(position));
+            }
+        }
+        return false;
+    }
+
+    ///// pairs
+
+    private void findSites(Set<String> pure) {
+        List<Token> tokens = program.tokens();
+        int position = 0;
+        while (position < tokens.size() - 1) {
+            Token token = tokens.get(position);
+            if (token.getType() == IDENTIFIER && pure.contains(token.getStringValue())) {
+                Site site = findSite(position, pure);
+                if (site != null) {
+                    sites[position] = site;
+                }
+            }
+            position += program.instructionLength(position);
+        }
+    }
+
+    private Site findSite(int first, Set<String> pure) {
+        List<Token> tokens = program.tokens();
+        // the amount of values the code between the calls pushed, it must never touch the result of the first call
+        int depth = 0;
+        int position = first + 1;
+        while (position < tokens.size() - 1) {
+            Token token = tokens.get(position);
+            int required;
+            int effect;
+            switch (token.getType()) {
+                case CHARACTER, CHAR, AT -> {
+                    required = 0;
+                    effect = 1;
+                }
+                case DUP -> {
+                    required = 1;
+                    effect = 1;
+                }
+                case AMPERSAND, POP -> {
+                    required = 1;
+                    effect = -1;
+                }
+                case NOT, BNOT -> {
+                    required = 1;
+                    effect = 0;
+                }
+                case SWAP -> {
+                    required = 2;
+                    effect = 0;
+                }
+                case PLUS, MINUS, STAR, SLASH, PERCENT, AND, OR, XOR -> {
+                    required = 2;
+                    effect = -1;
+                }
+                case COLUMN -> {
+                    required = 0;
+                    effect = 0;
+                }
+                case IDENTIFIER -> {
+                    FunctionData second = program.functions().get(token.getStringValue());
+                    if (second != null && pure.contains(second.name) && second.paramCount <= depth) {
+                        return new Site(program.functions().get(tokens.get(first).getStringValue()), position, second);
+                    }
+                    return null;
+                }
+                default -> {
+                    return null;
+                }
+            }
+            if (depth < required) {
+                return null;
+            }
+            depth += effect;
+            position += program.instructionLength(position);
+        }
+        return null;
+    }
+
+    /**
+     * Two calls that can run in parallel, the code between them can run while the first call is running
+     */
+    static class Site {
+        final FunctionData first;
+        final int secondPosition;
+        final FunctionData second;
+
+        Site(FunctionData first, int secondPosition, FunctionData second) {
+            this.first = first;
+            this.secondPosition = secondPosition;
+            this.second = second;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.*;
+
+import static com.github.nilstrieb.grsbpl.language.TokenType.*;
+
+/**
+ * Collects execution statistics of an {@link Interpreter} run
+ * <p>
+ * The hot path only increments a counter for the executed token and one for the current call tree node,
+ * everything else (lines, label regions, per function numbers) is aggregated when a report is written.
+ * Time is only measured when entering and leaving functions.
+ */
+public class Profiler implements InterpreterListener {
+
+    private static final String ROOT_NAME = "main";
+    private static final String NO_LABEL = "<start>";
+
+    private List<Token> program = List.of();
+    private long[] instructions = new long[0];
+
+    private final Map<String, FunctionStats> functions = new LinkedHashMap<>();
+    private final Node root = new Node(ROOT_NAME, null);
+    private Node current;
+
+    private Node[] callNodes = new Node[64];
+    private FunctionStats[] callStats = new FunctionStats[64];
+    private long[] callStart = new long[64];
+    private long[] callChildTime = new long[64];
+    private int depth;
+
+    private long startTime;
+    private long totalTime;
+
+    @Override
+    public void runStarted(Interpreter interpreter, List<Token> program) {
+        if (this.program != program) {
+            this.program = program;
+            this.instructions = new long[program.size()];
+        } else if (instructions.length < program.size()) {
+            // the program of an interactive session grew
+            this.instructions = Arrays.copyOf(instructions, program.size());
+        }
+        current = root;
+        depth = 0;
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    public void runFinished(Interpreter interpreter) {
+        long now = System.nanoTime();
+        while (depth > 0) {
+            exit(now);
+        }
+        totalTime += now - startTime;
+    }
+
+    @Override
+    public boolean tracesInstructions() {
+        return true;
+    }
+
+    @Override
+    public void instruction(int position) {
+        instructions[position]++;
+        current.instructions++;
+    }
+
+    @Override
+    public void functionEntered(String function) {
+        if (depth == callNodes.length) {
+            growCallStack();
+        }
+        FunctionStats stats = functions.computeIfAbsent(function, FunctionStats::new);
+        stats.calls++;
+        stats.active++;
+
+        callNodes[depth] = current;
+        callStats[depth] = stats;
+        callChildTime[depth] = 0;
+        callStart[depth] = System.nanoTime();
+        depth++;
+
+        current = current.child(function);
+    }
+
+    @Override
+    public void functionReturned() {
+        if (depth > 0) {
+            exit(System.nanoTime());
+        }
+    }
+
+    private void exit(long now) {
+        depth--;
+        FunctionStats stats = callStats[depth];
+        long elapsed = now - callStart[depth];
+
+        stats.exclusiveTime += elapsed - callChildTime[depth];
+        stats.active--;
+        // recursive calls are already contained in the time of the outermost call
+        if (stats.active == 0) {
+            stats.inclusiveTime += elapsed;
+        }
+        if (depth > 0) {
+            callChildTime[depth - 1] += elapsed;
+        }
+
+        current = callNodes[depth];
+        callNodes[depth] = null;
+        callStats[depth] = null;
+    }
+
+    private void growCallStack() {
+        int size = callNodes.length * 2;
+        callNodes = Arrays.copyOf(callNodes, size);
+        callStats = Arrays.copyOf(callStats, size);
+        callStart = Arrays.copyOf(callStart, size);
+        callChildTime = Arrays.copyOf(callChildTime, size);
+    }
+
+    ///// results
+
+    public long getTotalInstructions() {
+        return root.total();
+    }
+
+    /**
+     * @return the executed instructions per source line
+     */
+    public SortedMap<Integer, Long> getLineCounts() {
+        SortedMap<Integer, Long> lines = new TreeMap<>();
+        for (int i = 0; i < instructions.length; i++) {
+            if (instructions[i] != 0) {
+                lines.merge(program.get(i).getLineNumber(), instructions[i], Long::sum);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * A label region spans from a label definition to the next label definition in the source.
+     * Instructions before the first label are counted for {@value NO_LABEL}
+     *
+     * @return the executed instructions per label region
+     */
+    public Map<String, Long> getLabelCounts() {
+        Map<String, Long> labels = new LinkedHashMap<>();
+        String region = NO_LABEL;
+        for (int i = 0; i < instructions.length; i++) {
+            Token token = program.get(i);
+            if (token.getType() == COLUMN && i + 1 < instructions.length && program.get(i + 1).getType() == IDENTIFIER) {
+                region = program.get(i + 1).getStringValue();
+            }
+            if (instructions[i] != 0) {
+                labels.merge(region, instructions[i], Long::sum);
+            }
+        }
+        return labels;
+    }
+
+    public Collection<FunctionStats> getFunctionStats() {
+        Map<String, Long> ownInstructions = new HashMap<>();
+        root.collectInstructions(ownInstructions);
+        for (FunctionStats stats : functions.values()) {
+            stats.instructions = ownInstructions.getOrDefault(stats.name, 0L);
+        }
+        return Collections.unmodifiableCollection(functions.values());
+    }
+
+    /**
+     * Writes a human readable report of the hotspots
+     */
+    public void writeReport(PrintStream out) {
+        long total = getTotalInstructions();
+        out.println("[GRSBPL Profile]");
+        out.printf("  total time: %.3f ms, instructions: %d%n", totalTime / 1e6, total);
+
+        out.println();
+        out.println("  Functions (by exclusive time)");
+        out.printf("  %-24s %10s %14s %14s %14s%n", "function", "calls", "inclusive ms", "exclusive ms", "instructions");
+        getFunctionStats().stream()
+                .sorted(Comparator.comparingLong(FunctionStats::getExclusiveTime).reversed())
+                .forEach(f -> out.printf("  %-24s %10d %14.3f %14.3f %14d%n",
+                        f.name, f.calls, f.inclusiveTime / 1e6, f.exclusiveTime / 1e6, f.instructions));
+
+        out.println();
+        out.println("  Label regions (by instructions)");
+        getLabelCounts().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> out.printf("  %-24s %14d %6.2f%%%n", e.getKey(), e.getValue(), percent(e.getValue(), total)));
+
+        out.println();
+        out.println("  Lines (by instructions)");
+        getLineCounts().entrySet().stream()
+                .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+                .forEach(e -> out.printf("  line %-19d %14d %6.2f%%%n", e.getKey(), e.getValue(), percent(e.getValue(), total)));
+    }
+
+    /**
+     * Writes the call stacks in the collapsed format used by flamegraph tools, weighted by executed instructions
+     * <p>
+     * {@code main;factorial;factorial 42}
+     */
+    public void writeCollapsedStacks(Writer out) throws IOException {
+        root.writeCollapsed(new StringBuilder(), out);
+        out.flush();
+    }
+
+    private static double percent(long value, long total) {
+        return total == 0 ? 0 : value * 100.0 / total;
+    }
+
+    /**
+     * The aggregated numbers of a single function
+     */
+    public static class FunctionStats {
+        private final String name;
+        private long calls;
+        private long inclusiveTime;
+        private long exclusiveTime;
+        private long instructions;
+        private int active;
+
+        FunctionStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getInclusiveTime() {
+            return inclusiveTime;
+        }
+
+        public long getExclusiveTime() {
+            return exclusiveTime;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+    }
+
+    /**
+     * A node in the call tree, one for every distinct call stack
+     */
+    private static class Node {
+        private final String name;
+        private final Node parent;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private long instructions;
+
+        Node(String name, Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        Node child(String name) {
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node(name, this);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        long total() {
+            long total = instructions;
+            for (Node child : children.values()) {
+                total += child.total();
+            }
+            return total;
+        }
+
+        void collectInstructions(Map<String, Long> result) {
+            if (parent != null) {
+                result.merge(name, instructions, Long::sum);
+            }
+            for (Node child : children.values()) {
+                child.collectInstructions(result);
+            }
+        }
+
+        void writeCollapsed(StringBuilder stack, Writer out) throws IOException {
+            int length = stack.length();
+            if (length != 0) {
+                stack.append(';');
+            }
+            stack.append(name);
+            if (instructions != 0) {
+                out.write(stack + " " + instructions + "\n");
+            }
+            for (Node child : children.values()) {
+                child.writeCollapsed(stack, out);
+            }
+            stack.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.nilstrieb.grsbpl.language;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static com.github.nilstrieb.grsbpl.language.TokenType.*;
+
+/**
+ * The tokens of a program together with the positions of its labels and functions
+ * <p>
+ * A program can be extended with {@link #append(List)}, only the new tokens are scanned in that case.
+ * It can be written in a binary format with {@link #write(DataOutput)} and read back without lexing the source again.
+ * <p>
+ * A program from {@link #compileLazily(List)} only looks for labels and functions when they are used, scanning forward
+ * until the definition is found. This way, big programs start running right away.
+ * <p>
+ * A name can only be defined once, a second definition is reported as an error. Code appended later may define a name
+ * again, which replaces the earlier definition.
+ */
+public class Program {
+    private static final int MAGIC = 0x47525342; // GRSB
+    private static final int FORMAT_VERSION = 1;
+
+    private final List<Token> tokens;
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, FunctionData> functions = new HashMap<>();
+    /**
+     * The position of the first token of the last append, definitions before it may be replaced
+     */
+    private int appended;
+    /**
+     * The tokens before this position are scanned for labels and functions
+     */
+    private int scanned;
+    /**
+     * Everything is scanned, so the maps don't change anymore and can be read without locking
+     */
+    private volatile boolean complete;
+    // the fingerprint of the first tokens, programs only change by appending tokens
+    private long fingerprint;
+    private int fingerprintSize = -1;
+
+    private Program(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param tokens the tokens from the lexer, ending with {@link TokenType#EOF}
+     */
+    public static Program compile(List<Token> tokens) {
+        Program program = new Program(new ArrayList<>(tokens));
+        program.scanAll();
+        return program;
+    }
+
+    /**
+     * Like {@link #compile(List)}, but labels and functions are only looked for when they are first used. Errors in
+     * definitions, like a name that is defined twice, are reported when the scan reaches them.
+     *
+     * @param tokens the tokens from the lexer, ending with {@link TokenType#EOF}
+     */
+    public static Program compileLazily(List<Token> tokens) {
+        return new Program(new ArrayList<>(tokens));
+    }
+
+    /**
+     * @return an empty program that can be extended with {@link #append(List)}
+     */
+    public static Program empty() {
+        return compile(List.of(new Token(EOF)));
+    }
+
+    /**
+     * Appends the tokens of another piece of source code, labels and functions of the new tokens can be used from the
+     * whole program afterwards
+     *
+     * @param tokens the tokens from the lexer, ending with {@link TokenType#EOF}
+     * @return the position of the first new token
+     */
+    public int append(List<Token> tokens) {
+        int start = this.tokens.size() - 1;
+        this.tokens.remove(start); // EOF
+        this.tokens.addAll(tokens);
+        appended = start;
+        complete = false;
+        scanAll();
+        return start;
+    }
+
+    /**
+     * Writes the tokens of the program. Token types are written by name, so the format does not depend on the order
+     * of {@link TokenType}.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        TokenType[] types = TokenType.values();
+        out.writeShort(types.length);
+        for (TokenType type : types) {
+            out.writeUTF(type.name());
+        }
+        out.writeInt(tokens.size());
+        for (Token token : tokens) {
+            out.writeShort(token.getType().ordinal());
+            out.writeInt(token.getLineNumber());
+            out.writeInt(token.getLineOffset());
+            Object value = token.getValue();
+            if (value == null) {
+                out.writeByte(0);
+            } else if (value instanceof Integer) {
+                out.writeByte(1);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Character) {
+                out.writeByte(2);
+                out.writeChar((Character) value);
+            } else {
+                out.writeByte(3);
+                out.writeUTF((String) value);
+            }
+        }
+    }
+
+    /**
+     * Reads a program written by {@link #write(DataOutput)}
+     *
+     * @throws IOException if the data is not a program or uses token types that do not exist
+     */
+    public static Program read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a compiled GRSBPL program");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported program format version " + version);
+        }
+        TokenType[] types = new TokenType[in.readUnsignedShort()];
+        for (int i = 0; i < types.length; i++) {
+            String name = in.readUTF();
+            try {
+                types[i] = TokenType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown token type " + name);
+            }
+        }
+        int size = in.readInt();
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            TokenType type = types[in.readUnsignedShort()];
+            int lineNumber = in.readInt();
+            int lineOffset = in.readInt();
+            Object value = switch (in.readByte()) {
+                case 0 -> null;
+                case 1 -> in.readInt();
+                case 2 -> in.readChar();
+                case 3 -> in.readUTF();
+                default -> throw new IOException("Invalid token value");
+            };
+            tokens.add(new Token(type, value, lineNumber, lineOffset));
+        }
+        return compile(tokens);
+    }
+
+    /**
+     * @return a hash of the tokens, which stays the same across runs as long as the source code does
+     */
+    public long fingerprint() {
+        if (fingerprintSize == tokens.size()) {
+            return fingerprint;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            write(new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest)));
+            fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+            fingerprintSize = tokens.size();
+            return fingerprint;
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public List<Token> getTokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    List<Token> tokens() {
+        return tokens;
+    }
+
+    /**
+     * @return all labels, scanning the rest of the program if it wasn't scanned yet
+     */
+    Map<String, Integer> labels() {
+        if (!complete) {
+            scanAll();
+        }
+        return labels;
+    }
+
+    /**
+     * @return all functions, scanning the rest of the program if it wasn't scanned yet
+     */
+    Map<String, FunctionData> functions() {
+        if (!complete) {
+            scanAll();
+        }
+        return functions;
+    }
+
+    /**
+     * @return the position after the label or null if it doesn't exist
+     */
+    Integer label(String name) {
+        if (complete) {
+            return labels.get(name);
+        }
+        synchronized (this) {
+            Integer label = labels.get(name);
+            if (label == null && !complete) {
+                scan(name, null);
+                label = labels.get(name);
+            }
+            return label;
+        }
+    }
+
+    /**
+     * @return the function or null if it doesn't exist
+     */
+    FunctionData function(String name) {
+        if (complete) {
+            return functions.get(name);
+        }
+        synchronized (this) {
+            FunctionData function = functions.get(name);
+            if (function == null && !complete) {
+                scan(null, name);
+                function = functions.get(name);
+            }
+            return function;
+        }
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * @return the amount of tokens of the instruction starting at the position
+     */
+    int instructionLength(int position) {
+        return instructionLength(tokens.get(position).getType());
+    }
+
+    /**
+     * @return the amount of tokens of an instruction starting with a token of the type
+     */
+    static int instructionLength(TokenType type) {
+        return switch (type) {
+            case AMPERSAND, AT, COLUMN, GOTO, SPAWN, STRING, IMPORT -> 2;
+            case FUNCTION -> 3;
+            default -> 1;
+        };
+    }
+
+    private synchronized void scanAll() {
+        scan(null, null);
+    }
+
+    /**
+     * Scans forward until the label or function is defined or the end of the program is reached
+     */
+    private void scan(String label, String function) {
+        int end = tokens.size() - 1; // last token is EOF
+        int position = scanned;
+        while (position < end) {
+            TokenType type = tokens.get(position++).getType();
+            if (type == COLUMN) {
+                String name = expect(position++, IDENTIFIER).getStringValue();
+                Integer previous = labels.get(name);
+                if (previous != null && previous > appended) {
+                    throw defined(position - 1, "Label '" + name + "'");
+                }
+                labels.put(name, position);
+                if (name.equals(label)) {
+                    scanned = position;
+                    return;
+                }
+            } else if (type == FUNCTION) {
+                String name = expect(position++, IDENTIFIER).getStringValue();
+                int paramCount = expect(position++, CHARACTER).getIntValue();
+                FunctionData previous = functions.get(name);
+                if (previous != null && previous.index > appended) {
+                    throw defined(position - 2, "Function '" + name + "'");
+                }
+                functions.put(name, new FunctionData(position, paramCount, name));
+                if (name.equals(function)) {
+                    scanned = position;
+                    return;
+                }
+            }
+        }
+        scanned = position;
+        complete = true;
+    }
+
+    private RunException defined(int position, String name) {
+        Token token = tokens.get(position);
+        return new RunException(name + " is already defined", token.getLineNumber(), token.getLineOffset(), -1,
+                token.getLibrary());
+    }
+
+    private Token expect(int position, TokenType type) {
+        Token token = tokens.get(position);
+        if (token.getType() != type) {
+            Token last = tokens.get(position - 1);
+            int length = token.getLineNumber() == last.getLineNumber() ? token.getLineOffset() - last.getLineOffset() : -1;
+            throw new RunException("Excepted token '" + type + "' but found '" + token.getType() + "'",
+                    last.getLineNumber(), last.getLineOffset(), length, last.getLibrary());
+        }
+        return token;
+    }
+
+    /**
+     * The values for a function
+     */
+    static class FunctionData {
+        final String name;
+        final int index;
+        final int paramCount;
+
+        FunctionData(int index, int paramCount, String name) {
+            this.index = index;
+            this.paramCount = paramCount;
+            this.name = name;
+        }
+    }
+}
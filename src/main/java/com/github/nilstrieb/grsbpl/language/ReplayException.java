@@ -0,0 +1,10 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * Thrown when a replayed run does something else than the run recorded in its {@link ExecutionTrace}
+ */
+public class ReplayException extends RuntimeException {
+    public ReplayException(String message) {
+        super(message);
+    }
+}
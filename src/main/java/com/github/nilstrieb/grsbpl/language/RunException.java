@@ -4,12 +4,21 @@ public class RunException extends RuntimeException {
     private final int lineNumber;
     private final int lineOffset;
     private final int lineLength;
+    private final String library;
 
     public RunException(String message, int lineNumber, int lineOffset, int lineLength) {
+        this(message, lineNumber, lineOffset, lineLength, null);
+    }
+
+    /**
+     * @param library the library the line belongs to, null for the program itself
+     */
+    public RunException(String message, int lineNumber, int lineOffset, int lineLength, String library) {
         super(message);
         this.lineNumber = lineNumber;
         this.lineOffset = lineOffset;
         this.lineLength = lineLength;
+        this.library = library;
     }
 
     public int getLineNumber() {
@@ -23,4 +32,11 @@ public class RunException extends RuntimeException {
     public int getLineLength() {
         return lineLength;
     }
+
+    /**
+     * @return the library in which the error happened, or null if it happened in the program itself
+     */
+    public String getLibrary() {
+        return library;
+    }
 }
@@ -9,7 +9,11 @@ public class StackFrame {
     private int position;
 
     public StackFrame() {
-        stack = new IntStack();
+        this(new IntStack());
+    }
+
+    public StackFrame(IntStack stack) {
+        this.stack = stack;
         variables = new HashMap<>();
     }
 
@@ -0,0 +1,10 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * Thrown when a value is pushed onto a stack that already holds the max depth of its {@link StackPolicy}
+ */
+public class StackLimitException extends RuntimeException {
+    public StackLimitException(int maxDepth) {
+        super("Stack limit of " + maxDepth + " values reached");
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.nilstrieb.grsbpl.language;
+
+/**
+ * How the operand stack of every frame grows and shrinks, how deep it can get and where its values are stored
+ * <p>
+ * Policies are immutable, the {@code with} methods return a changed copy.
+ */
+public class StackPolicy {
+
+    /**
+     * The largest array the JVM can allocate
+     */
+    public static final int MAX_DEPTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * Grows by doubling, never shrinks and has no limit, the heap is used for the values
+     */
+    public static final StackPolicy DEFAULT = new StackPolicy(64, 2.0, false, MAX_DEPTH, false, 1 << 20);
+
+    private final int initialCapacity;
+    private final double growthFactor;
+    private final boolean shrink;
+    private final int maxDepth;
+    private final boolean offHeap;
+    private final int offHeapThreshold;
+
+    private StackPolicy(int initialCapacity, double growthFactor, boolean shrink, int maxDepth, boolean offHeap,
+                        int offHeapThreshold) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("Initial capacity must be positive: " + initialCapacity);
+        }
+        if (!(growthFactor > 1)) {
+            throw new IllegalArgumentException("Growth factor must be greater than 1: " + growthFactor);
+        }
+        if (maxDepth < 1 || maxDepth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Max depth must be between 1 and " + MAX_DEPTH + ": " + maxDepth);
+        }
+        if (offHeapThreshold < 1) {
+            throw new IllegalArgumentException("Off-heap threshold must be positive: " + offHeapThreshold);
+        }
+        this.initialCapacity = Math.min(initialCapacity, maxDepth);
+        this.growthFactor = growthFactor;
+        this.shrink = shrink;
+        this.maxDepth = maxDepth;
+        this.offHeap = offHeap;
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    public StackPolicy withInitialCapacity(int initialCapacity) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    /**
+     * @param growthFactor the capacity is multiplied with this when the stack is full
+     */
+    public StackPolicy withGrowthFactor(double growthFactor) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    /**
+     * @param shrink halve the capacity when less than a quarter of it is used, but never below the initial capacity
+     */
+    public StackPolicy withShrinking(boolean shrink) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    /**
+     * @param maxDepth the amount of values the stack of a single frame can hold
+     */
+    public StackPolicy withMaxDepth(int maxDepth) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    /**
+     * @param offHeap store the values outside of the Java heap once the stack gets bigger than the
+     *                {@linkplain #withOffHeapThreshold(int) threshold}, for stacks with hundreds of millions of values
+     */
+    public StackPolicy withOffHeap(boolean offHeap) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    /**
+     * @param offHeapThreshold the capacity above which an off-heap stack moves its values out of the Java heap, 1 << 20
+     *                         by default. Smaller stacks stay on the heap, so calls don't allocate direct memory.
+     */
+    public StackPolicy withOffHeapThreshold(int offHeapThreshold) {
+        return new StackPolicy(initialCapacity, growthFactor, shrink, maxDepth, offHeap, offHeapThreshold);
+    }
+
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    public boolean isShrink() {
+        return shrink;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public int getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    /**
+     * @return a new empty stack following this policy
+     */
+    public IntStack createStack() {
+        return offHeap ? new OffHeapIntStack(this) : new IntStack(this);
+    }
+
+    /**
+     * @return the capacity after growing from the current one, at least one more and at most the max depth
+     */
+    int grow(int capacity) {
+        return (int) Math.max(capacity + 1L, Math.min(maxDepth, (long) Math.ceil(capacity * growthFactor)));
+    }
+}
@@ -8,16 +8,25 @@ public class Token {
     private final Object value;
     private final int lineNumber;
     private final int lineOffset;
+    /**
+     * The library the token was linked from, null for tokens of the program itself
+     */
+    private final String library;
 
     public Token(TokenType type, int lineNumber, int lineOffset) {
         this(type, null, lineNumber, lineOffset);
     }
 
     public Token(TokenType type, Object value, int lineNumber, int lineOffset) {
+        this(type, value, lineNumber, lineOffset, null);
+    }
+
+    public Token(TokenType type, Object value, int lineNumber, int lineOffset, String library) {
         this.type = type;
         this.value = value;
         this.lineNumber = lineNumber;
         this.lineOffset = lineOffset;
+        this.library = library;
     }
 
     public Token(TokenType type) {
@@ -48,6 +57,13 @@ public class Token {
         return lineOffset;
     }
 
+    /**
+     * @return the library the token was linked from, or null if it is part of the program itself
+     */
+    public String getLibrary() {
+        return library;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -58,6 +74,7 @@ public class Token {
         if (lineNumber != token.lineNumber) return false;
         if (lineOffset != token.lineOffset) return false;
         if (type != token.type) return false;
+        if (!Objects.equals(library, token.library)) return false;
         return Objects.equals(value, token.value);
     }
 
@@ -18,9 +18,24 @@ public enum TokenType {
     // io
     OUT, NOUT, IN, STRING,
 
+    // memory
+    ALLOC, LOAD, STORE, COPY, FILL,
+
+    // maps
+    NEWMAP, PUT, GET, CONTAINS, REMOVE, SIZE,
+
     // control flow
     COLUMN(":"), GOTO, FUNCTION, IDENTIFIER, RETURN,
 
+    // parallelism
+    SPAWN, JOIN,
+
+    // channels
+    SEND, RECV,
+
+    // modules
+    IMPORT,
+
     // end
     EOF;
 
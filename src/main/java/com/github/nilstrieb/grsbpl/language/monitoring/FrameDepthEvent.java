@@ -0,0 +1,12 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import jdk.jfr.*;
+
+@Name("grsbpl.FrameDepth")
+@Label("Frame Depth High-Water Mark")
+@Category("GRSBPL")
+@Description("The number of stack frames reached a new maximum for this run")
+class FrameDepthEvent extends Event {
+    @Label("Frame Depth")
+    int depth;
+}
@@ -0,0 +1,16 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import jdk.jfr.*;
+
+@Name("grsbpl.FunctionCall")
+@Label("Function Call")
+@Category("GRSBPL")
+@Description("A function call that took longer than the threshold, including the functions it called")
+@Threshold("10 ms")
+class FunctionCallEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Frame Depth")
+    int depth;
+}
@@ -0,0 +1,127 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The MBean behind {@value OBJECT_NAME}
+ * <p>
+ * Running interpreters are only asked for their counters when the MBean is read,
+ * so monitoring adds nothing to the instructions themselves.
+ */
+public class InterpreterStatistics implements InterpreterStatisticsMXBean {
+
+    public static final String OBJECT_NAME = "com.github.nilstrieb.grsbpl:type=Interpreter";
+
+    private static final InterpreterStatistics INSTANCE = new InterpreterStatistics();
+
+    private final Set<Interpreter> running = ConcurrentHashMap.newKeySet();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder bytesOutput = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final AtomicInteger maxFrameDepth = new AtomicInteger();
+
+    private volatile boolean registered;
+
+    private InterpreterStatistics() {
+    }
+
+    /**
+     * @return the instance, registered at the platform MBean server
+     */
+    public static InterpreterStatistics get() {
+        if (!INSTANCE.registered) {
+            INSTANCE.register();
+        }
+        return INSTANCE;
+    }
+
+    private synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("[VM] - Could not register MBean " + OBJECT_NAME + ": " + e.getMessage());
+        }
+        registered = true;
+    }
+
+    void started(Interpreter interpreter) {
+        running.add(interpreter);
+    }
+
+    void finished(Interpreter interpreter) {
+        if (running.remove(interpreter)) {
+            instructions.add(interpreter.getInstructionCount());
+            calls.add(interpreter.getCallCount());
+            bytesOutput.add(interpreter.getBytesOutput());
+            maxFrameDepth.accumulateAndGet(interpreter.getMaxFrameDepth(), Math::max);
+            finished.increment();
+        }
+    }
+
+    @Override
+    public long getInstructionsExecuted() {
+        long sum = instructions.sum();
+        for (Interpreter interpreter : running) {
+            sum += interpreter.getInstructionCount();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getCalls() {
+        long sum = calls.sum();
+        for (Interpreter interpreter : running) {
+            sum += interpreter.getCallCount();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getBytesOutput() {
+        long sum = bytesOutput.sum();
+        for (Interpreter interpreter : running) {
+            sum += interpreter.getBytesOutput();
+        }
+        return sum;
+    }
+
+    @Override
+    public int getMaxFrameDepth() {
+        int max = maxFrameDepth.get();
+        for (Interpreter interpreter : running) {
+            max = Math.max(max, interpreter.getMaxFrameDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getStackCapacity() {
+        long sum = 0;
+        for (Interpreter interpreter : running) {
+            sum += interpreter.getStackCapacity();
+        }
+        return sum;
+    }
+
+    @Override
+    public int getRunningScripts() {
+        return running.size();
+    }
+
+    @Override
+    public long getFinishedScripts() {
+        return finished.sum();
+    }
+}
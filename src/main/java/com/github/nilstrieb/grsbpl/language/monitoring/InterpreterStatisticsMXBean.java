@@ -0,0 +1,27 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+/**
+ * Live counters of all monitored interpreters in this JVM, the totals include finished and running programs
+ */
+public interface InterpreterStatisticsMXBean {
+
+    long getInstructionsExecuted();
+
+    long getCalls();
+
+    long getBytesOutput();
+
+    /**
+     * @return the highest number of stack frames any program reached
+     */
+    int getMaxFrameDepth();
+
+    /**
+     * @return the summed stack capacity of the current stack frames of all running programs
+     */
+    long getStackCapacity();
+
+    int getRunningScripts();
+
+    long getFinishedScripts();
+}
@@ -0,0 +1,104 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.InterpreterListener;
+import com.github.nilstrieb.grsbpl.language.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Publishes the activity of an {@link Interpreter} as Java Flight Recorder events and to the {@link InterpreterStatistics} MBean
+ * <p>
+ * Events are only created while a recording has them enabled. A listener must only be added to a single interpreter.
+ */
+public class MonitoringListener implements InterpreterListener {
+
+    private static final FunctionCallEvent CALL_EVENT = new FunctionCallEvent();
+
+    private final InterpreterStatistics statistics = InterpreterStatistics.get();
+
+    private ScriptRunEvent runEvent;
+    private FunctionCallEvent[] calls = new FunctionCallEvent[64];
+    private int depth;
+    private int nextReportedDepth;
+
+    @Override
+    public void runStarted(Interpreter interpreter, List<Token> program) {
+        statistics.started(interpreter);
+        depth = 0;
+        nextReportedDepth = 2;
+        runEvent = new ScriptRunEvent();
+        runEvent.tokens = program.size();
+        runEvent.begin();
+    }
+
+    @Override
+    public void runFinished(Interpreter interpreter) {
+        statistics.finished(interpreter);
+        Arrays.fill(calls, 0, Math.min(depth, calls.length), null);
+
+        runEvent.end();
+        if (runEvent.shouldCommit()) {
+            runEvent.instructions = interpreter.getInstructionCount();
+            runEvent.calls = interpreter.getCallCount();
+            runEvent.maxFrameDepth = interpreter.getMaxFrameDepth();
+            runEvent.bytesOutput = interpreter.getBytesOutput();
+            runEvent.commit();
+        }
+        runEvent = null;
+    }
+
+    @Override
+    public void functionEntered(String name) {
+        if (depth == calls.length) {
+            calls = Arrays.copyOf(calls, calls.length * 2);
+        }
+        if (CALL_EVENT.isEnabled()) {
+            FunctionCallEvent event = new FunctionCallEvent();
+            event.function = name;
+            event.depth = depth + 1;
+            event.begin();
+            calls[depth] = event;
+        }
+        depth++;
+    }
+
+    @Override
+    public void functionReturned() {
+        if (depth == 0) {
+            return;
+        }
+        depth--;
+        FunctionCallEvent event = calls[depth];
+        if (event != null) {
+            calls[depth] = null;
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public void frameDepthReached(int depth) {
+        // only report doublings, deep recursion would flood the recording otherwise
+        if (depth >= nextReportedDepth) {
+            nextReportedDepth = depth * 2;
+            FrameDepthEvent event = new FrameDepthEvent();
+            if (event.shouldCommit()) {
+                event.depth = depth;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public void outputFlushed(long bytes) {
+        OutputFlushEvent event = new OutputFlushEvent();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import jdk.jfr.*;
+
+@Name("grsbpl.OutputFlush")
+@Label("Output Flush")
+@Category("GRSBPL")
+@Description("The program output was flushed")
+class OutputFlushEvent extends Event {
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
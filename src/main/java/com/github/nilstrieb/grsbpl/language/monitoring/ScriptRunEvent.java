@@ -0,0 +1,25 @@
+package com.github.nilstrieb.grsbpl.language.monitoring;
+
+import jdk.jfr.*;
+
+@Name("grsbpl.ScriptRun")
+@Label("Script Run")
+@Category("GRSBPL")
+@Description("A complete run of a program, from the first to the last instruction")
+class ScriptRunEvent extends Event {
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Instructions")
+    long instructions;
+
+    @Label("Calls")
+    long calls;
+
+    @Label("Max Frame Depth")
+    int maxFrameDepth;
+
+    @Label("Bytes Output")
+    @DataAmount
+    long bytesOutput;
+}
@@ -0,0 +1,130 @@
+package com.github.nilstrieb.grsbpl.script;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+
+import javax.script.*;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A lexed and scanned script, every evaluation runs in its own interpreter, so it can be evaluated concurrently
+ */
+public class GrsbplCompiledScript extends CompiledScript {
+
+    private final GrsbplScriptEngine engine;
+    private final Program program;
+    private final String fileName;
+
+    GrsbplCompiledScript(GrsbplScriptEngine engine, Program program, String fileName) {
+        this.engine = engine;
+        this.program = program;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @return the top value of the stack as an {@link Integer}
+     */
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        Interpreter interpreter = new Interpreter();
+        if (context.getReader() != null) {
+            interpreter.setInput(new ReaderInputStream(context.getReader()));
+        }
+        WriterPrintStream output = null;
+        if (context.getWriter() != null) {
+            output = new WriterPrintStream(context.getWriter());
+            interpreter.setOutput(output);
+        }
+
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, Integer> variables = new HashMap<>();
+        if (bindings != null) {
+            for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+                if (entry.getValue() instanceof Number) {
+                    variables.put(entry.getKey(), ((Number) entry.getValue()).intValue());
+                } else if (entry.getValue() instanceof Character) {
+                    variables.put(entry.getKey(), (int) (Character) entry.getValue());
+                }
+            }
+        }
+
+        try {
+            int result = interpreter.run(program, variables);
+            if (bindings != null) {
+                bindings.putAll(variables);
+            }
+            return result;
+        } catch (RunException e) {
+            throw new ScriptException(e.getMessage(), fileName, e.getLineNumber(), e.getLineOffset());
+        } catch (UncheckedIOException e) {
+            throw new ScriptException(e.getCause());
+        } finally {
+            if (output != null) {
+                output.flush();
+            }
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Every character of the reader is one value of {@code in}
+     */
+    private static class ReaderInputStream extends InputStream {
+        private final Reader reader;
+
+        ReaderInputStream(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return reader.read();
+        }
+    }
+
+    /**
+     * Passes what the interpreter prints to a writer, without encoding it to bytes in between
+     */
+    private static class WriterPrintStream extends PrintStream {
+        private final Writer writer;
+
+        WriterPrintStream(Writer writer) {
+            super(OutputStream.nullOutputStream());
+            this.writer = writer;
+        }
+
+        @Override
+        public void print(char c) {
+            try {
+                writer.write(c);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void print(String s) {
+            try {
+                writer.write(s);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
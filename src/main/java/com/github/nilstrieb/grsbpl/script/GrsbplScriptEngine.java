@@ -0,0 +1,75 @@
+package com.github.nilstrieb.grsbpl.script;
+
+import com.github.nilstrieb.grsbpl.language.LexException;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+
+import javax.script.*;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A JSR-223 engine for GRSBPL
+ * <p>
+ * Scripts are lexed and scanned once by {@link #compile(String)}, the {@link CompiledScript} can be cached and evaluated
+ * many times. {@code in} reads from the reader of the context and {@code out} writes to its writer. Integer values in
+ * the engine bindings are the variables of the outermost frame, and the variables are written back after the script
+ * succeeded. Evaluating returns the top value of the stack.
+ */
+public class GrsbplScriptEngine extends AbstractScriptEngine implements Compilable {
+
+    private final GrsbplScriptEngineFactory factory;
+
+    GrsbplScriptEngine(GrsbplScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return compile(reader).eval(context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        String fileName = (String) get(ScriptEngine.FILENAME);
+        try {
+            Program program = Program.compile(new Lexer().lex(script.toCharArray()));
+            return new GrsbplCompiledScript(this, program, fileName);
+        } catch (LexException e) {
+            throw new ScriptException(e.getMessage(), fileName, e.getLineNumber(), e.getLineOffset());
+        } catch (RunException e) {
+            throw new ScriptException(e.getMessage(), fileName, e.getLineNumber(), e.getLineOffset());
+        }
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            int read;
+            while ((read = script.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return compile(builder.toString());
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.nilstrieb.grsbpl.script;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Makes GRSBPL available through {@code new ScriptEngineManager().getEngineByName("grsbpl")}
+ */
+public class GrsbplScriptEngineFactory implements ScriptEngineFactory {
+
+    private static final String ENGINE_NAME = "GRSBPL Interpreter";
+    private static final String VERSION = "1.0";
+    private static final String LANGUAGE = "GRSBPL";
+
+    @Override
+    public String getEngineName() {
+        return ENGINE_NAME;
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("grsbpl");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("grsbpl", "GRSBPL");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return LANGUAGE;
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    /**
+     * The engine itself is not thread safe, {@link GrsbplCompiledScript}s can be evaluated concurrently with
+     * different contexts
+     */
+    @Override
+    public Object getParameter(String key) {
+        return switch (key) {
+            case ScriptEngine.ENGINE -> ENGINE_NAME;
+            case ScriptEngine.ENGINE_VERSION, ScriptEngine.LANGUAGE_VERSION -> VERSION;
+            case ScriptEngine.NAME -> getNames().get(0);
+            case ScriptEngine.LANGUAGE -> LANGUAGE;
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return String.join(" ", args) + (args.length == 0 ? "" : " ") + m;
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "\"" + toDisplay.replace("\\", "\\\\").replace("\"", "\\\"") + "\" out";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return List.of(statements).stream().collect(Collectors.joining("\n"));
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new GrsbplScriptEngine(this);
+    }
+}
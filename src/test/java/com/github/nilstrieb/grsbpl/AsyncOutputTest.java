@@ -0,0 +1,93 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.AsyncOutput;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncOutputTest {
+
+    @Test
+    void fullBufferWaitsForSlowTarget() {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                target.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // at most a few bytes at a time, so the buffer runs full
+                target.write(b, off, Math.min(len, 3));
+                if (len > 3) {
+                    write(b, off + 3, len - 3);
+                }
+                Thread.yield();
+            }
+        };
+        StringBuilder expected = new StringBuilder();
+        try (AsyncOutput output = new AsyncOutput(new PrintStream(slow), 16)) {
+            for (int i = 0; i < 5000; i++) {
+                output.print(String.valueOf(i));
+                output.print(',');
+                expected.append(i).append(',');
+            }
+            output.flush();
+            assertEquals(expected.toString(), target.toString());
+            assertFalse(output.checkError());
+        }
+    }
+
+    @Test
+    void charsetOfTarget() {
+        ByteArrayOutputStream latin = new ByteArrayOutputStream();
+        try (AsyncOutput output = new AsyncOutput(new PrintStream(latin, false, StandardCharsets.ISO_8859_1))) {
+            output.print("grüße ");
+            output.print('ä');
+        }
+        assertArrayEquals("grüße ä".getBytes(StandardCharsets.ISO_8859_1), latin.toByteArray());
+
+        // the surrogate pairs end up split by the end of the buffer
+        ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+        String text = "a\uD83D\uDE00".repeat(50);
+        try (AsyncOutput output = new AsyncOutput(new PrintStream(utf8, false, StandardCharsets.UTF_8), 4)) {
+            output.print(text);
+        }
+        assertEquals(text, utf8.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void restartsAfterRelease() throws InterruptedException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (AsyncOutput output = new AsyncOutput(new PrintStream(target), 16)) {
+            output.print("before");
+            output.release();
+            // long enough for the drainer to stop
+            Thread.sleep(1500);
+            output.print(" after");
+            output.flush();
+            assertEquals("before after", target.toString());
+        }
+    }
+
+    @Test
+    void error() {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        AsyncOutput output = new AsyncOutput(new PrintStream(broken), 16);
+        output.print("hello world, this is more than the capacity");
+        output.close();
+        assertTrue(output.checkError());
+    }
+}
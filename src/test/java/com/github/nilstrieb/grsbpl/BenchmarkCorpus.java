@@ -0,0 +1,131 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Program;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The programs in {@code src/test/resources/bench}, described by {@code corpus.properties}
+ * <p>
+ * Every program reads its size from the variable {@code scale}. All of them get the same input, the numbers
+ * {@code i * 7919 % 100003} for {@code i} from 1 to the scale, one per line.
+ */
+final class BenchmarkCorpus {
+
+    private BenchmarkCorpus() {
+    }
+
+    static List<Workload> load() {
+        Properties properties = new Properties();
+        try (InputStream in = resource("corpus.properties")) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Workload> workloads = new ArrayList<>();
+        for (String name : properties.getProperty("programs").split(",")) {
+            name = name.trim();
+            workloads.add(new Workload(name,
+                    Integer.parseInt(properties.getProperty(name + ".test")),
+                    Integer.parseInt(properties.getProperty(name + ".scale")),
+                    properties.getProperty(name + ".sha256")));
+        }
+        return workloads;
+    }
+
+    static String read(String name) {
+        try (InputStream in = resource(name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static InputStream resource(String name) throws IOException {
+        InputStream in = BenchmarkCorpus.class.getResourceAsStream("/bench/" + name);
+        if (in == null) {
+            throw new IOException("Missing benchmark resource " + name);
+        }
+        return in;
+    }
+
+    static byte[] input(int scale) {
+        StringBuilder input = new StringBuilder();
+        for (int i = 1; i <= scale; i++) {
+            input.append((int) ((long) i * 7919 % 100003)).append('\n');
+        }
+        return input.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class Workload {
+        final String name;
+        /**
+         * The scale of the correctness test, its expected output is in {@code <name>.out}
+         */
+        final int testScale;
+        /**
+         * The scale of the benchmark
+         */
+        final int scale;
+        /**
+         * The hash of the output at the benchmark scale
+         */
+        final String sha256;
+        final Program program;
+
+        Workload(String name, int testScale, int scale, String sha256) {
+            this.name = name;
+            this.testScale = testScale;
+            this.scale = scale;
+            this.sha256 = sha256;
+            this.program = Program.compile(new Lexer().lex(read(name + ".grsbpl").toCharArray()));
+        }
+
+        /**
+         * Runs the program with the interpreter, the input has to be created with {@link #input(int)}
+         *
+         * @return the output
+         */
+        byte[] run(Interpreter interpreter, int scale, byte[] input) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            interpreter.setInput(new ByteArrayInputStream(input));
+            interpreter.setOutput(new PrintStream(out));
+            Map<String, Integer> variables = new HashMap<>();
+            variables.put("scale", scale);
+            interpreter.run(program, variables);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.BenchmarkCorpus.Workload;
+import com.github.nilstrieb.grsbpl.language.ExecutionEngine;
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs the benchmark corpus on both engines and compares the throughput and allocation with a baseline
+ * <p>
+ * Only runs with {@code mvn test -Pbenchmark}. The baseline is read from {@code -Dbenchmark.baseline=<file>},
+ * {@code benchmark-baseline.json} by default, and it is an error if it does not exist. With
+ * {@code -Dbenchmark.update=true}, the results are written to it instead. The test fails if a workload got slower or
+ * allocates more than the {@code -Dbenchmark.tolerance} (0.25 by default) allows. The results of every run are written
+ * to {@code target/benchmark-results.json}.
+ * <p>
+ * The throughput is compared relative to a fixed loop of plain Java code that is measured right before every workload,
+ * so the baseline does not depend on the speed of the machine and a busy machine slows down both.
+ */
+@Tag("benchmark")
+class BenchmarkTest {
+
+    private static final int WARMUP_RUNS = 3;
+    /**
+     * Warm-up continues until at least this much time passed, so fast workloads are compiled by the JIT as well
+     */
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final int MEASURED_RUNS = 10;
+    /**
+     * Allocation that is always tolerated, the measurement is not exact for small values
+     */
+    private static final long ALLOCATION_SLACK = 64 * 1024;
+    private static final int CALIBRATION_RUNS = 10;
+    private static final int CALIBRATION_OPERATIONS = 20_000_000;
+    private static final Pattern ENTRY = Pattern.compile("\"([^\"]+)\":\\s*\\{\\s*\"instructionsPerSecond\":\\s*(\\d+)," +
+            "\\s*\"relativeThroughput\":\\s*([\\d.]+),\\s*\"allocatedBytesPerRun\":\\s*(\\d+)\\s*}");
+    private static volatile int sink;
+
+    @Test
+    void corpus() throws IOException {
+        Path baselineFile = Path.of(System.getProperty("benchmark.baseline", "benchmark-baseline.json"));
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.25"));
+        boolean update = Boolean.getBoolean("benchmark.update");
+        if (!update && !Files.exists(baselineFile)) {
+            fail("No baseline at " + baselineFile.toAbsolutePath() + ", record one with -Dbenchmark.update=true");
+        }
+        Map<String, Result> baseline = update ? Map.of() : read(baselineFile);
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> regressions = new ArrayList<>();
+        for (Workload workload : BenchmarkCorpus.load()) {
+            for (ExecutionEngine engine : ExecutionEngine.values()) {
+                String name = workload.name + "." + engine.name().toLowerCase().replace('_', '-');
+                Result result = measure(workload, engine);
+                results.put(name, result);
+                System.err.printf("%-24s %,15d instructions/s %10.4f relative %,15d bytes/run%n", name,
+                        result.instructionsPerSecond, result.relativeThroughput, result.allocatedBytesPerRun);
+
+                Result expected = baseline.get(name);
+                if (expected == null) {
+                    if (!update) {
+                        regressions.add(name + ": not in the baseline");
+                    }
+                    continue;
+                }
+                if (result.relativeThroughput < expected.relativeThroughput * (1 - tolerance)) {
+                    regressions.add(String.format("%s: %.4f relative throughput (%,d instructions/s), baseline %.4f",
+                            name, result.relativeThroughput, result.instructionsPerSecond, expected.relativeThroughput));
+                }
+                if (result.allocatedBytesPerRun > expected.allocatedBytesPerRun * (1 + tolerance) + ALLOCATION_SLACK) {
+                    regressions.add(String.format("%s: %,d bytes/run, baseline %,d", name,
+                            result.allocatedBytesPerRun, expected.allocatedBytesPerRun));
+                }
+            }
+        }
+
+        Files.createDirectories(Path.of("target"));
+        write(Path.of("target", "benchmark-results.json"), results);
+        if (update) {
+            write(baselineFile, results);
+        }
+        if (!regressions.isEmpty()) {
+            fail("Regressions beyond the tolerance of " + tolerance + ":\n" + String.join("\n", regressions));
+        }
+    }
+
+    private static Result measure(Workload workload, ExecutionEngine engine) {
+        double calibration = calibrate();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setEngine(engine);
+        byte[] input = BenchmarkCorpus.input(workload.scale);
+
+        long warmupStart = System.nanoTime();
+        for (int i = 0; i < WARMUP_RUNS || System.nanoTime() - warmupStart < WARMUP_NANOS; i++) {
+            workload.run(interpreter, workload.scale, input);
+        }
+        long[] nanos = new long[MEASURED_RUNS];
+        long[] allocated = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            byte[] output = workload.run(interpreter, workload.scale, input);
+            nanos[i] = System.nanoTime() - start;
+            allocated[i] = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            assertEquals(workload.sha256, BenchmarkCorpus.sha256(output), "Output of " + workload);
+        }
+        long instructions = interpreter.getInstructionCount();
+        // the fastest run is the least disturbed by other work on the machine
+        long instructionsPerSecond = (long) (instructions * 1e9 / Math.max(1, Arrays.stream(nanos).min().getAsLong()));
+        return new Result(instructionsPerSecond, instructionsPerSecond / calibration, median(allocated));
+    }
+
+    /**
+     * @return the calibration operations per second, from the fastest run after the warm-up
+     */
+    private static double calibrate() {
+        int[] table = new int[1 << 16];
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_RUNS + CALIBRATION_RUNS; i++) {
+            long start = System.nanoTime();
+            sink += calibration(table);
+            long time = System.nanoTime() - start;
+            if (i >= WARMUP_RUNS) {
+                fastest = Math.min(fastest, time);
+            }
+        }
+        return CALIBRATION_OPERATIONS * 1e9 / Math.max(1, fastest);
+    }
+
+    /**
+     * Table accesses and unpredictable branches, like the dispatch loop of an interpreter
+     */
+    private static int calibration(int[] table) {
+        int x = 1;
+        for (int i = 0; i < CALIBRATION_OPERATIONS; i++) {
+            x = x * 1103515245 + 12345;
+            int index = (x >>> 16) & (table.length - 1);
+            switch (x >>> 30) {
+                case 0 -> table[index] += x;
+                case 1 -> table[index] ^= i;
+                default -> x += table[index];
+            }
+        }
+        return x;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static Map<String, Result> read(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        Matcher matcher = ENTRY.matcher(Files.readString(file));
+        while (matcher.find()) {
+            results.put(matcher.group(1), new Result(Long.parseLong(matcher.group(2)),
+                    Double.parseDouble(matcher.group(3)), Long.parseLong(matcher.group(4))));
+        }
+        return results;
+    }
+
+    private static void write(Path file, Map<String, Result> results) throws IOException {
+        List<String> entries = new ArrayList<>();
+        results.forEach((name, result) -> entries.add(String.format(
+                Locale.ROOT, "  \"%s\": {\"instructionsPerSecond\": %d, \"relativeThroughput\": %.4f, " +
+                        "\"allocatedBytesPerRun\": %d}",
+                name, result.instructionsPerSecond, result.relativeThroughput, result.allocatedBytesPerRun)));
+        Files.writeString(file, "{\n" + String.join(",\n", entries) + "\n}\n");
+    }
+
+    private static final class Result {
+        final long instructionsPerSecond;
+        /**
+         * The instructions per calibration operation
+         */
+        final double relativeThroughput;
+        final long allocatedBytesPerRun;
+
+        Result(long instructionsPerSecond, double relativeThroughput, long allocatedBytesPerRun) {
+            this.instructionsPerSecond = instructionsPerSecond;
+            this.relativeThroughput = relativeThroughput;
+            this.allocatedBytesPerRun = allocatedBytesPerRun;
+        }
+    }
+}
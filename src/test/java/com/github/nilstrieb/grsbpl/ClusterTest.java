@@ -0,0 +1,101 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.cluster.Coordinator;
+import com.github.nilstrieb.grsbpl.cluster.JobResult;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Program;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterTest {
+
+    /**
+     * Writes the first character of the input, loops forever for 'w' and divides by zero for 'z'
+     */
+    private static final String PROGRAM = "in &c @c 'w' - not goto wait @c 'z' - not goto zero @c out 0 1 goto end " +
+            ":wait 1 goto wait :zero 1 0 / :end pop";
+
+    @Test
+    @Timeout(120)
+    void cluster(@TempDir Path dir) throws InterruptedException, IOException {
+        Program program = Program.compile(new Lexer().lex(PROGRAM.toCharArray()));
+        List<Path> inputs = new ArrayList<>();
+        for (String input : List.of("a", "w", "z", "d")) {
+            Path file = dir.resolve(input);
+            Files.writeString(file, input);
+            inputs.add(file);
+        }
+
+        CountDownLatch firstResult = new CountDownLatch(1);
+        Thread killer = new Thread(() -> {
+            try {
+                firstResult.await();
+                // give the worker time to start on "w", the retry then reads "b" and finishes
+                Thread.sleep(1000);
+                Files.writeString(inputs.get(1), "b");
+                ProcessHandle.current().children().forEach(ProcessHandle::destroyForcibly);
+            } catch (InterruptedException | IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        killer.start();
+
+        List<JobResult> results = new ArrayList<>();
+        new Coordinator(1, List.of()).run(program, inputs, result -> {
+            results.add(result);
+            firstResult.countDown();
+        });
+        killer.join();
+
+        assertEquals(4, results.size());
+        List<String> outputs = List.of("a", "b", "", "d");
+        for (int i = 0; i < results.size(); i++) {
+            JobResult result = results.get(i);
+            assertEquals(inputs.get(i), result.getInput());
+            assertEquals(outputs.get(i), new String(result.getOutput()));
+        }
+        assertNull(results.get(1).getError());
+        // the worker survives the error and runs the last job
+        assertTrue(results.get(2).getError().contains("ArithmeticException"), results.get(2).getError());
+        assertEquals(1, results.get(2).getExitCode());
+        assertNull(results.get(3).getError());
+    }
+
+    @Test
+    @Timeout(120)
+    void jobTimeout(@TempDir Path dir) throws InterruptedException, IOException {
+        Program program = Program.compile(new Lexer().lex(PROGRAM.toCharArray()));
+        List<Path> inputs = new ArrayList<>();
+        for (String input : List.of("a", "w", "d")) {
+            Path file = dir.resolve(input);
+            Files.writeString(file, input);
+            inputs.add(file);
+        }
+
+        List<JobResult> results = new ArrayList<>();
+        Coordinator coordinator = new Coordinator(1, List.of());
+        coordinator.setJobTimeout(Duration.ofSeconds(2));
+        coordinator.run(program, inputs, results::add);
+
+        assertEquals(3, results.size());
+        assertEquals("a", new String(results.get(0).getOutput()));
+        // the endless loop is given up, the restarted worker runs the last job
+        assertEquals("Worker timed out while running the job, gave up after 3 attempts", results.get(1).getError());
+        assertEquals(1, results.get(1).getExitCode());
+        assertEquals("d", new String(results.get(2).getOutput()));
+        assertNull(results.get(2).getError());
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.BenchmarkCorpus.Workload;
+import com.github.nilstrieb.grsbpl.language.ExecutionEngine;
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the programs of the benchmark corpus at a small scale, so the benchmark is not the first to notice a broken one
+ */
+class CorpusTest {
+
+    @Test
+    void expectedOutput() {
+        for (Workload workload : BenchmarkCorpus.load()) {
+            String expected = BenchmarkCorpus.read(workload.name + ".out");
+            byte[] input = BenchmarkCorpus.input(workload.testScale);
+            for (ExecutionEngine engine : ExecutionEngine.values()) {
+                Interpreter interpreter = new Interpreter();
+                interpreter.setEngine(engine);
+                byte[] output = workload.run(interpreter, workload.testScale, input);
+                assertEquals(expected, new String(output, StandardCharsets.UTF_8), workload + " on " + engine);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.nilstrieb.grsbpl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the runner in its own JVM, as it exits the JVM when it is done
+ */
+class GrsbplRunnerTest {
+
+    /**
+     * Parses the number of the line and writes it doubled, fails for a line starting with 'x'
+     */
+    private static final String DOUBLE = "0 &n\n" +
+            ":next in &c\n" +
+            "@c 1 + not goto end\n" +
+            "@c 'x' - not goto nowhere\n" +
+            "@c '0' - @n 10 * + &n\n" +
+            "1 goto next\n" +
+            ":end @n 2 * nout 10 out";
+    private static final int LINES = 400_000;
+    /**
+     * The size of the chunks the runner splits the input of --map into
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @Timeout(120)
+    void map() throws IOException, InterruptedException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            long value = i * 7919L % 100003;
+            lines.add(String.valueOf(value));
+            expected.append(value * 2).append('\n');
+        }
+        // CRLF line breaks, the runner must not pass the \r to the program
+        byte[] input = (String.join("\r\n", lines) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        assertTrue(input.length > 2 * CHUNK_SIZE);
+        assertNotEquals('\n', input[CHUNK_SIZE - 1], "the first chunk has to end in the middle of a line");
+
+        Result result = runMap(input);
+        assertEquals(0, result.exit, result.err);
+        // several chunks on several threads, written in the order of the input
+        assertEquals(expected.toString(), result.out);
+    }
+
+    @Test
+    @Timeout(120)
+    void mapError() throws IOException, InterruptedException {
+        int failing = 300_000;
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= LINES; i++) {
+            input.append(i == failing ? "x" : String.valueOf(i)).append('\n');
+            if (i < failing) {
+                expected.append(i * 2).append('\n');
+            }
+        }
+
+        Result result = runMap(input.toString().getBytes(StandardCharsets.US_ASCII));
+        assertEquals(1, result.exit);
+        assertEquals(expected.toString(), result.out);
+        assertTrue(result.err.contains("Failed for line " + failing + " of "), result.err);
+        assertTrue(result.err.contains("Label 'nowhere' not found"), result.err);
+    }
+
+    @Test
+    @Timeout(60)
+    void pipelineWithLibrary() throws IOException, InterruptedException {
+        Files.writeString(dir.resolve("math.grsbpl"), "function square 1 dup * return");
+        Path producer = dir.resolve("producer.grsbpl");
+        Files.writeString(producer, "import \"math\"\n7 square 0 send 0");
+        Path consumer = dir.resolve("consumer.grsbpl");
+        Files.writeString(consumer, "0 recv nout 0");
+
+        Result result = run("--pipeline", producer.toString(), consumer.toString());
+        assertEquals(0, result.exit, result.err);
+        assertEquals("49", result.out);
+    }
+
+    private Result runMap(byte[] input) throws IOException, InterruptedException {
+        Path program = dir.resolve("double.grsbpl");
+        Files.writeString(program, DOUBLE);
+        Path inputFile = dir.resolve("input.txt");
+        Files.write(inputFile, input);
+        return run("--threads", "4", "--map", inputFile.toString(), program.toString());
+    }
+
+    private Result run(String... arguments) throws IOException, InterruptedException {
+        Path out = dir.resolve("out.txt");
+        Path err = dir.resolve("err.txt");
+
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), GrsbplRunner.class.getName()));
+        command.addAll(List.of(arguments));
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(out.toFile())
+                .redirectError(err.toFile())
+                .start();
+        int exit = process.waitFor();
+        return new Result(exit, Files.readString(out), Files.readString(err));
+    }
+
+    private static final class Result {
+        final int exit;
+        final String out;
+        final String err;
+
+        Result(int exit, String out, String err) {
+            this.exit = exit;
+            this.out = out;
+            this.err = err;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.IntIntMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntIntMapTest {
+
+    @Test
+    void putGetRemove() {
+        IntIntMap map = new IntIntMap();
+        map.put(0, 10);
+        map.put(-5, 20);
+        map.put(7, 30);
+        map.put(7, 31);
+
+        assertEquals(3, map.size());
+        assertEquals(10, map.get(0));
+        assertEquals(20, map.get(-5));
+        assertEquals(31, map.get(7));
+        assertThrows(NoSuchElementException.class, () -> map.get(8));
+
+        assertTrue(map.remove(0));
+        assertFalse(map.remove(0));
+        assertFalse(map.contains(0));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void sameAsHashMap() {
+        IntIntMap map = new IntIntMap();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // a small key range, so there are lots of collisions, updates and removals
+            int key = random.nextInt(2000) - 1000;
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    map.put(key, i);
+                    expected.put(key, i);
+                }
+                case 1 -> assertEquals(expected.remove(key) != null, map.remove(key));
+                case 2 -> assertEquals(expected.getOrDefault(key, -1), map.get(key, -1));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+    }
+}
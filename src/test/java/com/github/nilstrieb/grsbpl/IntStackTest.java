@@ -1,10 +1,11 @@
 package com.github.nilstrieb.grsbpl;
 
 import com.github.nilstrieb.grsbpl.language.IntStack;
+import com.github.nilstrieb.grsbpl.language.StackLimitException;
+import com.github.nilstrieb.grsbpl.language.StackPolicy;
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 class IntStackTest {
 
@@ -42,4 +43,63 @@ class IntStackTest {
             assertEquals(i, s.pop());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void shrink() {
+        IntStack s = new IntStack(StackPolicy.DEFAULT.withInitialCapacity(16).withShrinking(true));
+        for (int i = 0; i < 10000; i++) {
+            s.push(i);
+        }
+        assertTrue(s.capacity() >= 10000);
+        for (int i = 9999; i >= 10; i--) {
+            assertEquals(i, s.pop());
+        }
+        assertTrue(s.capacity() <= 64);
+        assertEquals(9, s.pop());
+
+        IntStack growing = new IntStack(16);
+        for (int i = 0; i < 10000; i++) {
+            growing.push(i);
+        }
+        while (!growing.isEmpty()) {
+            growing.pop();
+        }
+        assertTrue(growing.capacity() >= 10000);
+    }
+
+    @Test
+    void maxDepth() {
+        for (StackPolicy policy : new StackPolicy[]{StackPolicy.DEFAULT, StackPolicy.DEFAULT.withOffHeap(true),
+                StackPolicy.DEFAULT.withOffHeap(true).withOffHeapThreshold(8)}) {
+            IntStack s = policy.withInitialCapacity(4).withGrowthFactor(1.5).withMaxDepth(100).createStack();
+            for (int i = 0; i < 100; i++) {
+                s.push(i);
+            }
+            assertEquals(100, s.capacity());
+            StackLimitException e = assertThrows(StackLimitException.class, () -> s.push(100));
+            assertEquals("Stack limit of 100 values reached", e.getMessage());
+            assertEquals(99, s.peek());
+        }
+    }
+
+    @Test
+    void offHeap() {
+        // moves to direct memory after 64 values
+        IntStack s = StackPolicy.DEFAULT.withOffHeap(true).withOffHeapThreshold(64).withShrinking(true)
+                .withInitialCapacity(8).createStack();
+        for (int i = 0; i < 1000; i++) {
+            s.push(i);
+        }
+        s.set(0, -1);
+        s.swap();
+        assertEquals(998, s.pop());
+        assertEquals(999, s.pop());
+        for (int i = 997; i >= 1; i--) {
+            assertEquals(i, s.pop());
+        }
+        assertEquals(-1, s.pop());
+        assertTrue(s.isEmpty());
+        assertEquals(8, s.capacity());
+        assertThrows(IndexOutOfBoundsException.class, s::pop);
+    }
+}
@@ -1,20 +1,47 @@
 package com.github.nilstrieb.grsbpl;
 
+import com.github.nilstrieb.grsbpl.language.CancellationToken;
+import com.github.nilstrieb.grsbpl.language.Checkpoint;
+import com.github.nilstrieb.grsbpl.language.Channels;
+import com.github.nilstrieb.grsbpl.language.ExecutionEngine;
+import com.github.nilstrieb.grsbpl.language.ExecutionProfile;
+import com.github.nilstrieb.grsbpl.language.ExecutionTrace;
 import com.github.nilstrieb.grsbpl.language.Interpreter;
 import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+import com.github.nilstrieb.grsbpl.language.StackPolicy;
 import com.github.nilstrieb.grsbpl.language.Token;
+import com.github.nilstrieb.grsbpl.language.TokenType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class InterpreterTest {
 
@@ -162,6 +189,46 @@ class InterpreterTest {
         assertEquals("hello world!\n", out.getOut());
     }
     
+    @Test
+    void inputOutput() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setInput(new ByteArrayInputStream("abc".getBytes()));
+        interpreter.setOutput(new PrintStream(output));
+        String echo = ":loop in dup 1 + not goto end pop out 1 goto loop :end 0";
+        assertEquals(0, run(echo));
+        assertEquals("abc", output.toString());
+        assertEquals("", out.getOut());
+    }
+
+    @Test
+    void asyncOutput() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new PrintStream(output));
+        interpreter.setAsyncOutput(true);
+        String program = "100000 &i :loop @i 10 % '0' + out @i nout \"ä\" out @i 1 - &i @i goto loop 7";
+        assertEquals(7, run(program));
+        String async = output.toString();
+
+        output.reset();
+        interpreter.setAsyncOutput(false);
+        run(program);
+        assertEquals(output.toString(), async);
+
+        // one background thread writes the output of all runs
+        Set<Thread> writers = ConcurrentHashMap.newKeySet();
+        interpreter.setOutput(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                writers.add(Thread.currentThread());
+            }
+        }));
+        interpreter.setAsyncOutput(true);
+        run(program);
+        run(program);
+        assertEquals(1, writers.size());
+        assertFalse(writers.contains(Thread.currentThread()));
+    }
+
     @Test
     void strings() {
         String program = "\"hallo\" out 't' out";
@@ -170,6 +237,510 @@ class InterpreterTest {
         assertEquals("hallot", out.getOut());
     }
 
+    @Test
+    void memory() {
+        String program = "10 alloc &table " +
+                "5 alloc &other " +
+                "7 @table 4 fill " +
+                "42 @table 3 + store " +
+                "@table @other 5 copy " +
+                "@other 3 + load @other load +";
+        assertEquals(49, run(program));
+        assertEquals(0, run("4 alloc"), "memory starts empty in every run");
+        assertThrows(RunException.class, () -> run("2 alloc 2 + load"));
+        assertThrows(RunException.class, () -> run("0 1 - alloc"));
+    }
+
+    @Test
+    void overlappingCopy() {
+        String program = "" +
+                "4 alloc &m " +
+                "1 @m store 2 @m 1 + store 3 @m 2 + store " +
+                "@m @m 1 + 3 copy " +
+                "@m 1 + load 100 * @m 3 + load +";
+        assertEquals(103, run(program));
+    }
+
+    @Test
+    void maps() {
+        String counting = "newmap &counts " +
+                "10 &i " +
+                ":loop " +
+                "@counts @i 3 % contains not goto missing " +
+                "@counts @i 3 % @counts @i 3 % get 1 + put " +
+                ":next @i 1 - &i @i goto loop " +
+                "1 goto end " +
+                ":missing pop @counts @i 3 % 1 put 1 goto next " +
+                ":end pop @counts 1 get 100 * @counts size +";
+        // 10 7 4 1 -> key 1 counted 4 times, 3 keys
+        assertEquals(403, run(counting));
+
+        assertEquals(0, run("newmap &m @m 5 6 put @m 5 remove @m size"));
+        assertThrows(RunException.class, () -> run("newmap 1 get"));
+        assertThrows(RunException.class, () -> run("3 size"));
+    }
+
+    @Test
+    void spawnJoin() {
+        String program = "" +
+                "0 10000 3 psum 1 goto end\n" +
+                "function psum 3\n" +
+                "&depth &hi &lo\n" +
+                "@depth not goto sequential\n" +
+                "@lo @lo @hi + 2 / @depth 1 - spawn psum &left\n" +
+                "@lo @hi + 2 / @hi @depth 1 - spawn psum &right\n" +
+                "@left join @right join + return\n" +
+                ":sequential\n" +
+                "0 &sum\n" +
+                ":loop\n" +
+                "@sum @lo + &sum\n" +
+                "@lo 1 + &lo\n" +
+                "@hi @lo - goto loop\n" +
+                "@sum return\n" +
+                ":end pop";
+        assertEquals(49995000, run(program));
+    }
+
+    @Test
+    void spawnedAllocations() {
+        // every call allocates and creates maps while the others do the same, nothing may get lost
+        String program = "" +
+                "1 spawn work 2 spawn work 3 spawn work 4 spawn work\n" +
+                "join pop join pop join pop join pop\n" +
+                "0 &sum 0 &i\n" +
+                ":memory @i load @sum + &sum @i 1 + &i 0 alloc @i - goto memory\n" +
+                "0 &bad 0 &m\n" +
+                ":maps @m size 1 - &d @d @d * @bad + &bad @m 1 + &m 12000 @m - goto maps\n" +
+                "1 goto end\n" +
+                "function work 1 &id 3000 &n\n" +
+                ":loop 1 alloc &a @id @a store newmap @id @id put @n 1 - &n @n goto loop\n" +
+                "0 return\n" +
+                ":end @bad 1000000 * @sum +";
+        for (int i = 0; i < 5; i++) {
+            assertEquals(3000 * (1 + 2 + 3 + 4), run(program));
+        }
+    }
+
+    @Test
+    void spawnError() {
+        String program = "spawn fail join 1 goto end function fail 0 1 goto nowhere :end";
+        RunException e = assertThrows(RunException.class, () -> run(program));
+        assertEquals("Label 'nowhere' not found", e.getMessage());
+        assertThrows(RunException.class, () -> run("5 join"));
+    }
+
+    @Test
+    void parallelCalls() {
+        String fib = "" +
+                "20 fib 1 goto end\n" +
+                "function fib 1\n" +
+                "&n\n" +
+                "@n not goto base\n" +
+                "@n 1 - not goto base\n" +
+                "@n 1 - fib @n 2 - fib + return\n" +
+                ":base pop @n return\n" +
+                ":end pop";
+        int sequential = run(fib);
+        interpreter.setParallelCalls(true);
+        assertEquals(6765, sequential);
+        assertEquals(sequential, run(fib));
+
+        // not pure, so the output has to stay in order
+        String printing = "1 show 2 show + 1 goto end function show 1 dup nout return :end pop";
+        assertEquals(3, run(printing));
+        assertEquals("12", out.getOut());
+
+        String failing = "1 a 2 b + 1 goto end function a 1 goto first return function b 1 goto second return :end";
+        RunException e = assertThrows(RunException.class, () -> run(failing));
+        assertEquals("Label 'first' not found", e.getMessage());
+
+        // deeply nested parallel calls continue sequentially instead of overflowing the Java stack
+        String deep = "600 f 1 goto end function f 1 &n @n not goto base @n 1 - f 1 g + return :base pop 0 return " +
+                "function g 1 return :end pop";
+        assertEquals(600, run(deep));
+    }
+
+    @Test
+    void parallelCallsInstructionLimit() {
+        String fib = "22 fib 1 goto end function fib 1 &n @n not goto base @n 1 - not goto base " +
+                "@n 1 - fib @n 2 - fib + return :base pop @n return :end pop";
+        assertEquals(17711, run(fib));
+        long sequential = interpreter.getInstructionCount();
+        interpreter.setInstructionLimit(20000);
+        RunException sequentialLimit = assertThrows(RunException.class, () -> run(fib));
+
+        interpreter.setParallelCalls(true);
+        interpreter.setInstructionLimit(Long.MAX_VALUE);
+        assertEquals(17711, run(fib));
+        assertEquals(sequential, interpreter.getInstructionCount());
+        // the forked calls share the limit
+        interpreter.setInstructionLimit(20000);
+        RunException parallelLimit = assertThrows(RunException.class, () -> run(fib));
+        assertEquals(sequentialLimit.getMessage(), parallelLimit.getMessage());
+        interpreter.setInstructionLimit(sequential);
+        assertEquals(17711, run(fib));
+        assertEquals(sequential, interpreter.getInstructionCount());
+    }
+
+    @Test
+    void channels() throws InterruptedException {
+        Channels channels = new Channels(16);
+        Interpreter producer = new Interpreter();
+        producer.setChannels(channels);
+        interpreter.setChannels(channels);
+
+        String produce = "1 &i :loop @i 0 send @i 1 + &i 1001 @i - goto loop 0 1 - 0 send";
+        Thread thread = new Thread(() -> producer.run(new Lexer().lex(produce.toCharArray())));
+        thread.start();
+        String consume = "0 &sum :loop 0 recv &v @v 1 + not goto end @sum @v + &sum 1 goto loop :end @sum";
+        assertEquals(500500, run(consume));
+        thread.join();
+
+        RunException e = assertThrows(RunException.class, () -> run("1 1024 send"));
+        assertEquals("Channel 1024 does not exist, channels go from 0 to 1023", e.getMessage());
+    }
+
+    @Test
+    void channelCancellation() {
+        CancellationToken token = new CancellationToken();
+        interpreter.setCancellationToken(token);
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            token.cancel();
+        }).start();
+        RunException e = assertThrows(RunException.class, () -> run("0 recv"));
+        assertEquals("Execution was cancelled", e.getMessage());
+    }
+
+    @Test
+    void hostFunctions() throws ReflectiveOperationException {
+        interpreter.addHostFunction("sub", 2, args -> args[0] - args[1]);
+        interpreter.addHostFunction("max", MethodHandles.lookup()
+                .findStatic(Math.class, "max", MethodType.methodType(int.class, int.class, int.class)));
+        assertEquals(7, run("10 3 sub"));
+        assertEquals(9, run("4 9 max 2 max"));
+
+        // functions of the program take precedence
+        assertEquals(13, run("10 3 sub 1 goto end function sub 2 + return :end pop"));
+
+        interpreter.addHostFunction("fail", 0, args -> {
+            throw new IllegalStateException("broken");
+        });
+        RunException e = assertThrows(RunException.class, () -> run("fail"));
+        assertEquals("Host function 'fail' failed: java.lang.IllegalStateException: broken", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> interpreter.addHostFunction("bad",
+                MethodHandles.lookup().findStatic(Math.class, "abs", MethodType.methodType(long.class, long.class))));
+    }
+
+    @Test
+    void stackLimit() {
+        interpreter.setStackPolicy(StackPolicy.DEFAULT.withMaxDepth(100));
+        RunException e = assertThrows(RunException.class, () -> run(":loop 1 goto loop"));
+        assertEquals("Stack limit of 100 values reached", e.getMessage());
+        assertEquals(4950, run("0 &s 99 &i 1 :loop pop @s @i + &s @i 1 - &i @i goto loop @s"));
+
+        interpreter.setStackPolicy(StackPolicy.DEFAULT.withOffHeap(true).withShrinking(true));
+        assertEquals(7, run("10000 &i :push @i @i 1 - &i @i goto push 7"));
+    }
+
+    @Test
+    void loopOptimizer() {
+        List<String> programs = List.of(
+                "0 &s 100 &i :outer 50 &j :inner @s @i @j * + &s @j 1 - &j @j goto inner pop @i 1 - &i @i goto outer pop @s",
+                "1 goto a 4 :a goto b 5 :b :c goto d 6 :d pop 7",
+                "10 &i 0 &e :l @i 2 % goto odd @e 1 + &e :odd pop @i 1 - &i @i goto l @e",
+                "3 &i :l @i 1 - &i @x @i goto l",
+                "5 &i :l 10 @i 3 - / pop @i 1 - &i @i goto l",
+                "5 &i :l @i 1 - &i @i goto l pop pop",
+                "1 :l goto l",
+                "0 &i :l @i 1 + &i 1 goto l",
+                "0 &i :l @i @i 1 + &i 200 @i - goto l",
+                "0 &i 1 goto mid :l pop @i 1 + &i :mid @i 10 - goto l @i",
+                "0 &i :l @i 1 + &i @i 5 % goto l @i 20 - goto l @i",
+                "0 &i 1 :x goto z 9 :z :w @i 1 + &i @i 3 - goto x @i");
+        interpreter.setStackPolicy(StackPolicy.DEFAULT.withMaxDepth(100));
+        for (String program : programs) {
+            for (long limit : List.of(1000L, 1_000_000L)) {
+                interpreter.setInstructionLimit(limit);
+                assertEquals(outcome(program, ExecutionEngine.TOKEN_SWITCH), outcome(program, ExecutionEngine.CLOSURE_TREE), program);
+            }
+        }
+    }
+
+    /**
+     * The result or error of the program together with the instruction count and variables
+     */
+    String outcome(String program, ExecutionEngine engine) {
+        interpreter.setEngine(engine);
+        Map<String, Integer> variables = new HashMap<>();
+        String result;
+        try {
+            result = String.valueOf(interpreter.run(Program.compile(new Lexer().lex(program.toCharArray())), variables));
+        } catch (RunException e) {
+            result = e.getMessage() + " at " + e.getLineNumber() + ":" + e.getLineOffset();
+        } catch (RuntimeException e) {
+            result = e.getClass().getName();
+        }
+        return result + " after " + interpreter.getInstructionCount() + " instructions " + variables;
+    }
+
+    @Test
+    void profileData() throws IOException {
+        String source = "0 &s 2000 &i :loop @s @i + &s @i 1 - &i @i goto loop pop @s double " +
+                "1 goto end function double 1 2 * return :end pop";
+        Program program = Program.compile(new Lexer().lex(source.toCharArray()));
+        List<Token> tokens = program.getTokens();
+        int loopGoto = tokens.indexOf(new Token(TokenType.IDENTIFIER, "loop", 1, source.indexOf("goto loop") + 5)) - 1;
+        int doubleBody = tokens.size() - 7;
+
+        ExecutionProfile switchProfile = new ExecutionProfile();
+        interpreter.setProfileData(switchProfile);
+        assertEquals(4002000, interpreter.run(program));
+        assertEquals(4002000, interpreter.run(program));
+        ExecutionProfile closureProfile = new ExecutionProfile();
+        interpreter.setProfileData(closureProfile);
+        interpreter.setEngine(ExecutionEngine.CLOSURE_TREE);
+        interpreter.run(program);
+        interpreter.run(program);
+
+        for (ExecutionProfile profile : List.of(switchProfile, closureProfile)) {
+            assertTrue(profile.isFor(program));
+            assertEquals(2, profile.getRuns());
+            assertEquals(2 * 1999, profile.getTaken(loopGoto));
+            assertEquals(2, profile.getNotTaken(loopGoto));
+            assertEquals(2, profile.getCalls(doubleBody));
+            assertEquals(ExecutionEngine.TOKEN_SWITCH, profile.suggestEngine(program));
+        }
+        assertEquals(switchProfile.getInstructionsPerRun(), closureProfile.getInstructionsPerRun());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        switchProfile.write(new DataOutputStream(bytes));
+        ExecutionProfile read = ExecutionProfile.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(read.isFor(program));
+        assertEquals(switchProfile.getTaken(loopGoto), read.getTaken(loopGoto));
+        assertEquals(switchProfile.getInstructionsPerRun(), read.getInstructionsPerRun());
+
+        Program longer = Program.compile(new Lexer().lex(source.replace("2000", "200000").toCharArray()));
+        assertFalse(read.isFor(longer));
+        interpreter.setProfileData(read);
+        interpreter.run(longer);
+        assertEquals(1, read.getRuns());
+        assertEquals(ExecutionEngine.CLOSURE_TREE, read.suggestEngine(longer));
+    }
+
+    @Test
+    void profileDataOfThreadedJumps() {
+        // the closure engine threads the first goto of each pair through the second one, in and outside of a loop
+        String source = "3 &i 1 goto a 5 :a goto b 6 :b pop :l @i 1 - &i 1 goto c 5 :c goto d :d pop @i goto l";
+        Program program = Program.compile(new Lexer().lex(source.toCharArray()));
+        ExecutionProfile switchProfile = new ExecutionProfile();
+        interpreter.setProfileData(switchProfile);
+        interpreter.run(program);
+        ExecutionProfile closureProfile = new ExecutionProfile();
+        interpreter.setProfileData(closureProfile);
+        interpreter.setEngine(ExecutionEngine.CLOSURE_TREE);
+        interpreter.run(program);
+
+        long taken = 0;
+        for (int position = 0; position < program.size(); position++) {
+            assertEquals(switchProfile.getTaken(position), closureProfile.getTaken(position), "taken at " + position);
+            assertEquals(switchProfile.getNotTaken(position), closureProfile.getNotTaken(position), "not taken at " + position);
+            taken += closureProfile.getTaken(position);
+        }
+        // a, b, three times c and d, twice l
+        assertEquals(10, taken);
+        assertEquals(switchProfile.getInstructionsPerRun(), closureProfile.getInstructionsPerRun());
+    }
+
+    @Test
+    void trace(@TempDir Path dir) throws IOException {
+        String source = "0 &s :read in dup 1 + not goto end pop double @s + &s 1 goto read " +
+                ":end pop @s 1 goto exit function double 1 2 * return :exit pop";
+        Program program = Program.compile(new Lexer().lex(source.toCharArray()));
+        for (ExecutionEngine engine : ExecutionEngine.values()) {
+            Path file = dir.resolve(engine + ".trace");
+            interpreter.setEngine(engine);
+            interpreter.setInput(new ByteArrayInputStream("abc".getBytes()));
+            interpreter.setTrace(ExecutionTrace.record(file, 100));
+            assertEquals(588, interpreter.run(program));
+
+            ExecutionTrace trace = ExecutionTrace.open(file);
+            assertTrue(trace.isFor(program));
+            assertTrue(trace.isComplete());
+            assertEquals(engine, trace.getEngine());
+            // 4 inputs, 3 calls and returns, 3 jumps back to read and the jumps to end and exit
+            assertEquals(15, trace.getRecordCount());
+
+            // the input comes from the trace
+            interpreter.setInput(new ByteArrayInputStream("xyz".getBytes()));
+            interpreter.setTrace(trace);
+            assertEquals(588, interpreter.run(program));
+        }
+
+        // a run that stopped early can be replayed up to where it stopped
+        Path stopped = dir.resolve("stopped.trace");
+        interpreter.setEngine(ExecutionEngine.TOKEN_SWITCH);
+        interpreter.setInstructionLimit(20);
+        interpreter.setTrace(ExecutionTrace.record(stopped, 100));
+        assertThrows(RunException.class, () -> interpreter.run(program));
+        interpreter.setInstructionLimit(Long.MAX_VALUE);
+        interpreter.setTrace(ExecutionTrace.open(stopped));
+        RunException e = assertThrows(RunException.class, () -> interpreter.run(program));
+        assertTrue(e.getMessage().startsWith("Replay reached the end of the trace"), e.getMessage());
+
+        ExecutionTrace recorded = ExecutionTrace.open(dir.resolve("TOKEN_SWITCH.trace"));
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        recorded.writeSummary(program, new PrintStream(summary), 10);
+        assertTrue(summary.toString().contains("3 calls, 3 returns, 5 taken gotos, 4 input values"), summary.toString());
+    }
+
+    @Test
+    void checkpoint() throws IOException {
+        String calls = "4 alloc &mem newmap &map 1 &i :loop @i square dup nout ' ' out @i 4 % @mem + store " +
+                "@map @i @i fib put @i 1 + &i @i 12 - goto loop pop " +
+                "@mem load @mem 1 + load + @mem 2 + load + @mem 3 + load + @map 11 get + 1 goto end " +
+                "function square 1 dup * return " +
+                "function fib 1 &n @n 2 / not goto small pop @n 1 - fib @n 2 - fib + return :small pop @n return " +
+                ":end pop";
+        // compiled into a single loop node by the closure engine
+        String loop = "0 &s 0 &i :loop @s @i + &s @i 1 + &i @i 200 - goto loop pop @s";
+        for (String source : List.of(calls, loop)) {
+            Program program = Program.compile(new Lexer().lex(source.toCharArray()));
+            ByteArrayOutputStream reference = new ByteArrayOutputStream();
+            interpreter.setOutput(new PrintStream(reference));
+            int expected = interpreter.run(program);
+            String expectedOutput = reference.toString();
+
+            for (ExecutionEngine engine : ExecutionEngine.values()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                List<Checkpoint> checkpoints = new ArrayList<>();
+                List<Integer> written = new ArrayList<>();
+                Interpreter checkpointed = new Interpreter();
+                checkpointed.setEngine(engine);
+                checkpointed.setOutput(new PrintStream(output));
+                // take one at every backward jump and call
+                checkpointed.setCheckpoints(checkpoint -> {
+                    checkpoints.add(checkpoint);
+                    written.add(output.size());
+                    checkpointed.requestCheckpoint();
+                }, null);
+                checkpointed.requestCheckpoint();
+                assertEquals(expected, checkpointed.run(program));
+                assertEquals(expectedOutput, output.toString());
+                assertTrue(checkpoints.size() > 100, "only " + checkpoints.size() + " checkpoints");
+
+                for (int i = 0; i < checkpoints.size(); i++) {
+                    Checkpoint checkpoint = checkpoints.get(i);
+                    if (i % 10 == 0) {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        checkpoint.write(new DataOutputStream(bytes));
+                        checkpoint = Checkpoint.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                    }
+                    ByteArrayOutputStream resumedOutput = new ByteArrayOutputStream();
+                    Interpreter resumed = new Interpreter();
+                    resumed.setEngine(engine);
+                    resumed.setOutput(new PrintStream(resumedOutput));
+                    assertEquals(expected, resumed.resume(program, checkpoint), "checkpoint " + i);
+                    assertEquals(expectedOutput.substring(written.get(i)), resumedOutput.toString(), "checkpoint " + i);
+                    assertEquals(checkpointed.getInstructionCount(), resumed.getInstructionCount(), "checkpoint " + i);
+                }
+            }
+        }
+
+        Program program = Program.compile(new Lexer().lex(calls.toCharArray()));
+        Program other = Program.compile(new Lexer().lex("1 2 +".toCharArray()));
+        Interpreter collecting = new Interpreter();
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        collecting.setOutput(new PrintStream(new ByteArrayOutputStream()));
+        collecting.setCheckpoints(checkpoints::add, null);
+        collecting.requestCheckpoint();
+        collecting.run(program);
+        assertEquals(1, checkpoints.size());
+        assertThrows(IllegalArgumentException.class, () -> interpreter.resume(other, checkpoints.get(0)));
+    }
+
+    @Test
+    void closureEngine() throws IOException, URISyntaxException {
+        String fizzBuzz = Files.readString(Path.of(getClass().getClassLoader().getResource("fizzbuzz.grsbpl").toURI()));
+        String factorial = 10 + Files.readString(Path.of(getClass().getClassLoader().getResource("factorial.grsbpl").toURI()));
+        String fib = "20 fib 1 goto end function fib 1 &n @n not goto base @n 1 - not goto base " +
+                "@n 1 - fib @n 2 - fib + return :base pop @n return :end pop";
+        List<String> programs = List.of(fizzBuzz, factorial, fib,
+                "5 3 - 2 * 7 % 3 / 12 and 10 or 6 xor bnot not 4 dup swap pop +",
+                "'a' &x @x \"hi\" out 10 alloc &p 42 @p store @p load @x +");
+        for (String program : programs) {
+            interpreter.setEngine(ExecutionEngine.TOKEN_SWITCH);
+            int expected = run(program);
+            String expectedOut = out.getOut();
+            interpreter.setEngine(ExecutionEngine.CLOSURE_TREE);
+            assertEquals(expected, run(program));
+            assertEquals(expectedOut + expectedOut, out.getOut());
+            out = new OutStream();
+            System.setOut(out);
+        }
+
+        RunException e = assertThrows(RunException.class, () -> run("1\n1 goto nowhere"));
+        assertEquals("Label 'nowhere' not found", e.getMessage());
+        assertEquals(2, e.getLineNumber());
+        e = assertThrows(RunException.class, () -> run("pop"));
+        assertEquals("Cannot pop empty stack", e.getMessage());
+
+        interpreter.setInstructionLimit(1000);
+        assertThrows(RunException.class, () -> run(":loop 1 goto loop"));
+        assertThrows(RunException.class, () -> run("1 :loop goto loop"));
+        interpreter.setInstructionLimit(Long.MAX_VALUE);
+
+        interpreter.addHostFunction("twice", 1, args -> args[0] * 2);
+        assertEquals(42, run("21 twice"));
+        interpreter.setParallelCalls(true);
+        assertEquals(6765, run(fib));
+    }
+
+    @Test
+    void instructionLimit() {
+        interpreter.setInstructionLimit(1000);
+        RunException e = assertThrows(RunException.class, () -> run(":loop 1 goto loop"));
+        assertEquals("Instruction limit of 1000 reached", e.getMessage());
+
+        String recursion = "1 endless function endless 1 endless";
+        assertThrows(RunException.class, () -> run(recursion));
+
+        assertEquals(3, run("1 1 * 2 +"));
+    }
+
+    @Test
+    void timeout() {
+        interpreter.setTimeout(Duration.ofMillis(50));
+        RunException e = assertThrows(RunException.class, () -> run(":loop 1 goto loop"));
+        assertEquals("Timeout of 50ms reached", e.getMessage());
+    }
+
+    @Test
+    void cancellation() {
+        CancellationToken token = new CancellationToken();
+        interpreter.setCancellationToken(token);
+        assertEquals(0, run("3 &i :loop @i 1 - &i @i goto loop"));
+
+        token.cancel();
+        RunException e = assertThrows(RunException.class, () -> run(":loop 1 goto loop"));
+        assertEquals("Execution was cancelled", e.getMessage());
+    }
+
+    @Test
+    void session() {
+        interpreter.startSession();
+        assertEquals(OptionalInt.of(10), evaluate("1 5 * 5 +"));
+        assertEquals(OptionalInt.empty(), evaluate("&ten"));
+        assertEquals(OptionalInt.empty(), evaluate("function double 1 2 * return"));
+        assertEquals(OptionalInt.of(20), evaluate("@ten double"));
+        assertThrows(RunException.class, () -> evaluate("goto nowhere"));
+        assertEquals(OptionalInt.of(21), evaluate("1 +"));
+        assertEquals(OptionalInt.of(0), evaluate("3 :loop 1 - dup goto loop"));
+    }
+
     static class OutStream extends PrintStream {
         private final StringBuilder builder = new StringBuilder();
 
@@ -203,6 +774,10 @@ class InterpreterTest {
         }
     }
 
+    OptionalInt evaluate(String line) {
+        return interpreter.evaluate(new Lexer().lex(line.toCharArray()));
+    }
+
     int run(String program) {
         List<Token> tokens = new Lexer().lex(program.toCharArray());
         return interpreter.run(tokens);
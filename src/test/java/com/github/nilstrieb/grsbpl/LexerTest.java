@@ -1,5 +1,6 @@
 package com.github.nilstrieb.grsbpl;
 
+import com.github.nilstrieb.grsbpl.language.LexException;
 import com.github.nilstrieb.grsbpl.language.Lexer;
 import com.github.nilstrieb.grsbpl.language.Token;
 import com.github.nilstrieb.grsbpl.language.TokenType;
@@ -31,6 +32,34 @@ class LexerTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    void memoryKeywords() {
+        String program = "alloc load store copy fill";
+        List<TokenType> expected = List.of(ALLOC, LOAD, STORE, COPY, FILL, EOF);
+        assertEquals(expected, getTypes(lex(program)));
+    }
+
+    @Test
+    void mapKeywords() {
+        String program = "newmap put get contains remove size";
+        List<TokenType> expected = List.of(NEWMAP, PUT, GET, CONTAINS, REMOVE, SIZE, EOF);
+        assertEquals(expected, getTypes(lex(program)));
+    }
+
+    @Test
+    void channelKeywords() {
+        String program = "send recv spawn join";
+        List<TokenType> expected = List.of(SEND, RECV, SPAWN, JOIN, EOF);
+        assertEquals(expected, getTypes(lex(program)));
+    }
+
+    @Test
+    void importKeyword() {
+        String program = "import \"math\" in";
+        List<TokenType> expected = List.of(IMPORT, STRING, IN, EOF);
+        assertEquals(expected, getTypes(lex(program)));
+    }
+
     @Test
     void symbols() {
         String program = "+ & @ - % / * : +";
@@ -111,6 +140,23 @@ class LexerTest {
         assertEquals(expected, getValues(lex(withHex)));
     }
 
+    @Test
+    void numberRadixes() {
+        String numbers = "0b101 0o17 0xff_FF 2147483647 0x7FFFFFFF 0b1_0 0_7";
+        List<Integer> expected = List.of(5, 15, 0xFFFF, Integer.MAX_VALUE, Integer.MAX_VALUE, 2, 7);
+        assertEquals(expected, getValues(lex(numbers)));
+
+        LexException e = assertThrows(LexException.class, () -> lex("1 2147483648"));
+        assertEquals("Value not an integer: 2147483648", e.getMessage());
+        assertEquals(2, e.getLineOffset());
+        e = assertThrows(LexException.class, () -> lex("0x100000000"));
+        assertEquals("Value not an integer: 100000000", e.getMessage());
+        e = assertThrows(LexException.class, () -> lex("0b102"));
+        assertEquals("Value not an integer: 102", e.getMessage());
+        e = assertThrows(LexException.class, () -> lex("12ab"));
+        assertEquals("Value not an integer: 12ab", e.getMessage());
+    }
+
     @Test
     void string() {
         String strings = "\"hallo\" \"test\" 't' \"hallo\\\"test\\n\"";
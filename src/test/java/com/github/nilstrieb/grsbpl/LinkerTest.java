@@ -0,0 +1,120 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Linker;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+import com.github.nilstrieb.grsbpl.language.Token;
+import com.github.nilstrieb.grsbpl.language.TokenType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkerTest {
+
+    static final String MATH = "function double 1 2 * return\n" +
+            "function square 1 dup * return\n" +
+            "function unused 0 1 return\n" +
+            "function quad 1 double double return\n" +
+            "function countdown 1 &n :loop @n 1 - &n @n goto loop pop 7 return";
+
+    Map<String, String> sources;
+    Linker linker;
+
+    @BeforeEach
+    void setup() {
+        sources = new HashMap<>();
+        sources.put("math", MATH);
+        linker = new Linker(name -> sources.containsKey(name) ? compile(sources.get(name)) : null);
+    }
+
+    @Test
+    void link() throws IOException {
+        Program program = linker.link(lex("import \"math\" 3 square quad &r 1 goto skip :loop 99 :skip pop 5 countdown @r +"));
+        assertEquals(43, new Interpreter().run(program));
+
+        List<Token> tokens = program.getTokens();
+        assertTrue(tokens.stream().anyMatch(token -> "countdown".equals(token.getValue())));
+        assertFalse(tokens.stream().anyMatch(token -> "unused".equals(token.getValue())));
+        assertFalse(tokens.stream().anyMatch(token -> token.getType() == TokenType.IMPORT));
+    }
+
+    @Test
+    void ownFunctionsFirst() throws IOException {
+        // quad of the library keeps calling the double of the library
+        Program program = linker.link(lex("import \"math\" 4 quad 1 double + 1 goto end function double 1 3 * return :end pop"));
+        assertEquals(16 + 3, new Interpreter().run(program));
+    }
+
+    @Test
+    void sameHelperInProgramAndLibrary() throws IOException {
+        sources.put("api", "function helper 1 10 * return function api 1 helper return function callback 1 twice return");
+        Program program = linker.link(lex("import \"api\" 3 api 1 helper + 1 callback + 1 goto end " +
+                "function helper 1 1000 + return function twice 1 2 * return :end pop"));
+        assertEquals(30 + 1001 + 2, new Interpreter().run(program));
+    }
+
+    @Test
+    void compiledAndTransitive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        compile(MATH).write(new DataOutputStream(bytes));
+        linker.addLibrary("math", Program.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        sources.remove("math");
+        sources.put("eight", "import \"math\" function eight 0 2 quad return");
+
+        assertEquals(8, new Interpreter().run(linker.link(lex("import \"eight\" eight"))));
+    }
+
+    @Test
+    void transitiveScope() throws IOException {
+        sources.put("eight", "import \"math\" function eight 0 2 quad return");
+        RunException e = assertThrows(RunException.class,
+                () -> new Interpreter().run(linker.link(lex("import \"eight\" eight 1 quad"))));
+        assertEquals("Function 'quad' not found", e.getMessage());
+        assertNull(e.getLibrary());
+
+        // both libraries define double, each one calls its own
+        sources.put("tripled", "function double 1 3 * return function six 0 2 double return");
+        Program program = linker.link(lex("import \"tripled\" import \"eight\" six eight + 1 double +"));
+        assertEquals(6 + 8 + 3, new Interpreter().run(program));
+    }
+
+    @Test
+    void errorInLibrary() throws IOException {
+        sources.put("div", "function half 1\n2 /\nreturn\n\nfunction broken 1\n1 goto nowhere\nreturn");
+        RunException e = assertThrows(RunException.class,
+                () -> new Interpreter().run(linker.link(lex("import \"div\"\n\n4 half broken"))));
+        assertEquals("Label 'nowhere' not found", e.getMessage());
+        assertEquals("div", e.getLibrary());
+        assertEquals(6, e.getLineNumber());
+    }
+
+    @Test
+    void errors() {
+        RunException e = assertThrows(RunException.class, () -> linker.link(lex("1\nimport \"nope\"")));
+        assertEquals("Library 'nope' not found", e.getMessage());
+        assertEquals(2, e.getLineNumber());
+
+        sources.put("script", "1 2 + function three 0 3 return");
+        e = assertThrows(RunException.class, () -> linker.link(lex("import \"script\" three")));
+        assertEquals("Library 'script' contains code outside of functions", e.getMessage());
+
+        e = assertThrows(RunException.class, () -> new Interpreter().run(lex("import \"math\" 3 square")));
+        assertEquals("Library 'math' is not linked", e.getMessage());
+    }
+
+    List<Token> lex(String program) {
+        return new Lexer().lex(program.toCharArray());
+    }
+
+    Program compile(String program) {
+        return Program.compile(lex(program));
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.Memory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryTest {
+
+    @Test
+    void growKeepsValues() {
+        for (Memory memory : new Memory[]{Memory.heap(), Memory.offHeap()}) {
+            int first = memory.alloc(10);
+            memory.store(first + 9, 99);
+            int second = memory.alloc(5000);
+            assertEquals(10, second);
+            assertEquals(99, memory.load(9));
+            assertEquals(0, memory.load(second + 4999));
+            assertThrows(IndexOutOfBoundsException.class, () -> memory.load(5010));
+        }
+    }
+
+    @Test
+    void mappedFile(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("memory.bin");
+        try (Memory memory = Memory.mapped(file)) {
+            assertEquals(0, memory.size());
+            int address = memory.alloc(3000);
+            memory.fill(address, 3000, 5);
+            memory.store(address + 2999, 6);
+        }
+        assertEquals(3000 * Integer.BYTES, Files.size(file));
+
+        try (Memory memory = Memory.mapped(file)) {
+            assertEquals(3000, memory.size());
+            assertEquals(5, memory.load(0));
+            assertEquals(6, memory.load(2999));
+            assertEquals(3000, memory.alloc(1));
+        }
+    }
+}
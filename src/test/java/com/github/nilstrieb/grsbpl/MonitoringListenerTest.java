@@ -0,0 +1,74 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.monitoring.InterpreterStatistics;
+import com.github.nilstrieb.grsbpl.language.monitoring.InterpreterStatisticsMXBean;
+import com.github.nilstrieb.grsbpl.language.monitoring.MonitoringListener;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MonitoringListenerTest {
+
+    static final String PROGRAM = "5 factorial 1 goto exit " +
+            "function factorial 1 " +
+            "dup not goto isZero " +
+            "&del dup 1 - factorial * return " +
+            ":isZero 1 return " +
+            ":exit 0";
+
+    @Test
+    void mbeanCounters() throws MalformedObjectNameException {
+        InterpreterStatistics.get();
+        InterpreterStatisticsMXBean bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(InterpreterStatistics.OBJECT_NAME), InterpreterStatisticsMXBean.class);
+        long callsBefore = bean.getCalls();
+        long finishedBefore = bean.getFinishedScripts();
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.addListener(new MonitoringListener());
+        interpreter.run(new Lexer().lex(PROGRAM.toCharArray()));
+
+        assertEquals(6, bean.getCalls() - callsBefore);
+        assertEquals(1, bean.getFinishedScripts() - finishedBefore);
+        assertTrue(bean.getMaxFrameDepth() >= 7);
+        assertEquals(0, bean.getRunningScripts());
+    }
+
+    @Test
+    void flightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("grsbpl", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("grsbpl.ScriptRun");
+            recording.enable("grsbpl.FunctionCall").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+
+            Interpreter interpreter = new Interpreter();
+            interpreter.addListener(new MonitoringListener());
+            interpreter.run(new Lexer().lex(PROGRAM.toCharArray()));
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        assertEquals(6, events.stream().filter(e -> e.getEventType().getName().equals("grsbpl.FunctionCall")).count());
+        RecordedEvent run = events.stream().filter(e -> e.getEventType().getName().equals("grsbpl.ScriptRun")).findFirst().orElseThrow();
+        assertEquals(6, run.getLong("calls"));
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Profiler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProfilerTest {
+
+    static final String PROGRAM = "" +
+            "3 factorial 1 goto exit\n" +
+            "function factorial 1\n" +
+            "dup not goto isZero\n" +
+            "&del dup 1 - factorial * return\n" +
+            ":isZero\n" +
+            "1 return\n" +
+            ":exit 0";
+
+    Profiler profiler;
+
+    @BeforeEach
+    void setup() {
+        profiler = new Profiler();
+        Interpreter interpreter = new Interpreter();
+        interpreter.addListener(profiler);
+        assertEquals(0, interpreter.run(new Lexer().lex(PROGRAM.toCharArray())));
+    }
+
+    @Test
+    void functionCalls() {
+        Map<String, Long> calls = profiler.getFunctionStats().stream()
+                .collect(Collectors.toMap(Profiler.FunctionStats::getName, Profiler.FunctionStats::getCalls));
+        assertEquals(Map.of("factorial", 4L), calls);
+    }
+
+    @Test
+    void lineCounts() {
+        Map<Integer, Long> lines = profiler.getLineCounts();
+        // 3 factorial 1 goto exit
+        assertEquals(4, lines.get(1));
+        // dup not goto isZero, executed once per call
+        assertEquals(4 * 3, lines.get(3));
+        // 1 return, only reached by the innermost call
+        assertEquals(2, lines.get(6));
+        assertEquals(profiler.getTotalInstructions(), lines.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    void labelCounts() {
+        Map<String, Long> labels = profiler.getLabelCounts();
+        assertEquals(2, labels.get("isZero"));
+        assertEquals(1, labels.get("exit"));
+    }
+
+    @Test
+    void collapsedStacks() throws IOException {
+        StringWriter writer = new StringWriter();
+        profiler.writeCollapsedStacks(writer);
+        String[] lines = writer.toString().split("\n");
+        assertEquals("main 5", lines[0]);
+        assertTrue(lines[lines.length - 1].startsWith("main;factorial;factorial;factorial;factorial "));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.nilstrieb.grsbpl;
+
+import com.github.nilstrieb.grsbpl.language.ExecutionEngine;
+import com.github.nilstrieb.grsbpl.language.Interpreter;
+import com.github.nilstrieb.grsbpl.language.Lexer;
+import com.github.nilstrieb.grsbpl.language.Program;
+import com.github.nilstrieb.grsbpl.language.RunException;
+import com.github.nilstrieb.grsbpl.language.Token;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgramTest {
+
+    @Test
+    void writeAndRead() throws IOException {
+        String source = "'a' 0x10 &x \"hi\" out @x double &r 1 goto end function double 1 2 * return :end pop @r";
+        Program program = Program.compile(new Lexer().lex(source.toCharArray()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        program.write(new DataOutputStream(bytes));
+        Program read = Program.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(program.getTokens(), read.getTokens());
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(32, interpreter.run(read));
+    }
+
+    @Test
+    void lazy() throws IOException, URISyntaxException {
+        String fizzBuzz = Files.readString(Path.of(getClass().getClassLoader().getResource("fizzbuzz.grsbpl").toURI()));
+        String fib = "20 fib 1 goto end function fib 1 &n @n not goto base @n 1 - not goto base " +
+                "@n 1 - fib @n 2 - fib + return :base pop @n return :end pop";
+        for (String source : List.of(fizzBuzz, fib)) {
+            List<Token> tokens = new Lexer().lex(source.toCharArray());
+            ByteArrayOutputStream eager = new ByteArrayOutputStream();
+            ByteArrayOutputStream lazy = new ByteArrayOutputStream();
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(new PrintStream(eager));
+            int expected = interpreter.run(Program.compile(tokens));
+            interpreter.setOutput(new PrintStream(lazy));
+            assertEquals(expected, interpreter.run(Program.compileLazily(tokens)));
+            assertEquals(eager.toString(), lazy.toString());
+        }
+
+        // the output comes before the broken definition is found
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(new PrintStream(output));
+        List<Token> broken = new Lexer().lex("'a' out 1 goto end : 5 :end".toCharArray());
+        RunException e = assertThrows(RunException.class, () -> interpreter.run(Program.compileLazily(broken)));
+        assertEquals("Excepted token 'IDENTIFIER' but found 'CHARACTER'", e.getMessage());
+        assertEquals("a", output.toString());
+        assertThrows(RunException.class, () -> Program.compile(broken));
+
+        assertThrows(RunException.class, () -> interpreter.run(Program.compileLazily(new Lexer().lex("1 goto nowhere".toCharArray()))));
+    }
+
+    @Test
+    void duplicateDefinitions() {
+        // the scan for b passes the second :a
+        String source = "0 &i 1 goto a :a @i 1 + &i @i nout 1 goto b :a 9 nout :b pop @i 2 - goto a";
+        List<Token> tokens = new Lexer().lex(source.toCharArray());
+        RunException e = assertThrows(RunException.class, () -> Program.compile(tokens));
+        assertEquals("Label 'a' is already defined", e.getMessage());
+        for (ExecutionEngine engine : ExecutionEngine.values()) {
+            Interpreter interpreter = new Interpreter();
+            interpreter.setOutput(new PrintStream(new ByteArrayOutputStream()));
+            interpreter.setEngine(engine);
+            RunException lazy = assertThrows(RunException.class, () -> interpreter.run(Program.compileLazily(tokens)));
+            assertEquals(e.getMessage(), lazy.getMessage(), engine.name());
+            assertEquals(e.getLineOffset(), lazy.getLineOffset(), engine.name());
+        }
+
+        List<Token> functions = new Lexer().lex("f function f 0 1 return function f 0 2 return".toCharArray());
+        e = assertThrows(RunException.class, () -> Program.compile(functions));
+        assertEquals("Function 'f' is already defined", e.getMessage());
+        assertThrows(RunException.class, () -> new Interpreter().run(Program.compileLazily(functions)));
+
+        // appended code may define a name again
+        Program program = Program.compile(new Lexer().lex("function f 0 1 return :a".toCharArray()));
+        program.append(new Lexer().lex("function f 0 2 return :a".toCharArray()));
+    }
+
+    @Test
+    void readInvalid() {
+        byte[] bytes = {1, 2, 3, 4};
+        assertThrows(IOException.class, () -> Program.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+    }
+}
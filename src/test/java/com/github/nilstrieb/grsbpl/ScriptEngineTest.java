@@ -0,0 +1,62 @@
+package com.github.nilstrieb.grsbpl;
+
+import org.junit.jupiter.api.Test;
+
+import javax.script.*;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptEngineTest {
+
+    private final ScriptEngine engine = new ScriptEngineManager().getEngineByName("grsbpl");
+
+    @Test
+    void evalWithBindings() throws ScriptException {
+        engine.put("x", 20);
+        assertEquals(42, engine.eval("@x 2 * 2 + dup &y"));
+        assertEquals(42, engine.get("y"));
+    }
+
+    @Test
+    void readerAndWriter() throws ScriptException {
+        ScriptContext context = new SimpleScriptContext();
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        context.setReader(new StringReader("hi"));
+        engine.eval(":loop in dup 1 + not goto end pop out 1 goto loop :end \"!\" out 0", context);
+        assertEquals("hi!", writer.toString());
+    }
+
+    @Test
+    void compiledConcurrently() throws Exception {
+        CompiledScript script = ((Compilable) engine).compile("0 &sum :loop @sum @n + &sum @n 1 - &n @n goto loop @sum");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int n = 1; n <= 100; n++) {
+                Bindings bindings = new SimpleBindings();
+                bindings.put("n", n);
+                results.add(executor.submit(() -> script.eval(bindings)));
+            }
+            for (int n = 1; n <= 100; n++) {
+                assertEquals(n * (n + 1) / 2, results.get(n - 1).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void errors() {
+        ScriptException e = assertThrows(ScriptException.class, () -> engine.eval("1 goto nowhere"));
+        assertEquals(1, e.getLineNumber());
+        assertThrows(ScriptException.class, () -> ((Compilable) engine).compile("'ab'"));
+    }
+}